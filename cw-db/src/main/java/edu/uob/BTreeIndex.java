@@ -0,0 +1,331 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Ordered index on one column: a B+tree from {@link SortKey}s to the slots holding them, with the
+ * leaves linked both ways. Besides equality lookups it answers numeric ranges ({@code mark > 50})
+ * and walks a table in key order for ORDER BY without sorting.
+ *
+ * Deleting only removes entries from their leaf; leaves are not merged, which keeps deletes cheap
+ * and doesn't affect lookups, since separator keys in the inner nodes stay valid bounds.
+ */
+class BTreeIndex extends Index {
+    static final String KIND = "BTREE";
+    // Keys per node before it is split
+    private static final int ORDER = 64;
+
+    private Node root = new Leaf();
+
+    BTreeIndex(String column) {
+        super(column);
+    }
+
+    String kind() {
+        return KIND;
+    }
+
+    void add(String value, int slot) {
+        SortKey key = SortKey.of(value);
+        Node sibling = root.insert(key, slot);
+        if(sibling != null) {
+            Inner newRoot = new Inner();
+            newRoot.keys[0] = sibling.separator();
+            newRoot.children[0] = root;
+            newRoot.children[1] = sibling;
+            newRoot.size = 1;
+            root = newRoot;
+        }
+    }
+
+    void remove(String value, int slot) {
+        SortKey key = SortKey.of(value);
+        Leaf leaf = root.leafFor(key);
+        int i = leaf.find(key);
+        if(i < leaf.size && leaf.keys[i].equals(key)) {
+            leaf.postings[i].remove(slot);
+            if(leaf.postings[i].size() == 0) {
+                leaf.removeAt(i);
+            }
+        }
+    }
+
+    void clear() {
+        root = new Leaf();
+    }
+
+    int[] lookup(String value) {
+        SortKey key = SortKey.of(value);
+        if(key.number) {
+            // Picks up the same number written differently too
+            return numberRange(key, key);
+        }
+        Leaf leaf = root.leafFor(key);
+        int i = leaf.find(key);
+        if(i < leaf.size && leaf.keys[i].equals(key)) {
+            return leaf.postings[i].toArray();
+        }
+        return new int[0];
+    }
+
+    // Slots holding numbers between low and high (both inclusive, null for no bound), in table order
+    int[] range(String low, String high) {
+        return numberRange(low == null ? null : SortKey.of(low), high == null ? null : SortKey.of(high));
+    }
+
+    private int[] numberRange(SortKey low, SortKey high) {
+        SlotList found = new SlotList();
+        Leaf leaf;
+        int i;
+        if(low == null) {
+            leaf = root.firstLeaf();
+            i = 0;
+        } else {
+            // Start at the first key that isn't a number below low, 65.0 included when low is 65
+            leaf = root.leafFrom(low);
+            i = leaf.countBelow(low);
+        }
+        int[] slots = new int[16];
+        int count = 0;
+        for(; leaf != null; leaf = leaf.next, i = 0) {
+            for(; i < leaf.size; i++) {
+                SortKey key = leaf.keys[i];
+                if(!key.number || (high != null && key.compareNumber(high) > 0)) {
+                    return sorted(slots, count);
+                }
+                SlotList posting = leaf.postings[i];
+                if(count + posting.size() > slots.length) {
+                    slots = Arrays.copyOf(slots, Math.max(slots.length * 2, count + posting.size()));
+                }
+                for(int p=0; p<posting.size(); p++) {
+                    slots[count++] = posting.get(p);
+                }
+            }
+        }
+        return sorted(slots, count);
+    }
+
+    private static int[] sorted(int[] slots, int count) {
+        int[] result = Arrays.copyOf(slots, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Every slot in key order (rows with equal values in table order), or the other way round
+    PrimitiveIterator.OfInt slots(boolean descending) {
+        return new PrimitiveIterator.OfInt() {
+            Leaf leaf = descending ? root.lastLeaf() : root.firstLeaf();
+            int key = descending ? leaf.size - 1 : 0;
+            int posting = 0;
+
+            @Override
+            public boolean hasNext() {
+                while(leaf != null) {
+                    if(key >= 0 && key < leaf.size) {
+                        if(posting < leaf.postings[key].size()) {
+                            return true;
+                        }
+                        key += descending ? -1 : 1;
+                        posting = 0;
+                        continue;
+                    }
+                    leaf = descending ? leaf.prev : leaf.next;
+                    if(leaf != null) {
+                        key = descending ? leaf.size - 1 : 0;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public int nextInt() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return leaf.postings[key].get(posting++);
+            }
+        };
+    }
+
+    private abstract static class Node {
+        final SortKey[] keys = new SortKey[ORDER + 1];
+        int size = 0;
+
+        // Adds the key (or the slot to an existing key), returns the new right sibling if the node split
+        abstract Node insert(SortKey key, int slot);
+
+        abstract Leaf leafFor(SortKey key);
+
+        abstract Leaf firstLeaf();
+
+        abstract Leaf lastLeaf();
+
+        // For a node just split off: the key it is filed under in its parent
+        abstract SortKey separator();
+
+        // The leaf holding the first key that isn't a number below low
+        abstract Leaf leafFrom(SortKey low);
+
+        // Number of keys that are numbers below low (they all come first)
+        int countBelow(SortKey low) {
+            int from = 0;
+            int to = size;
+            while(from < to) {
+                int mid = (from + to) >>> 1;
+                if(keys[mid].number && keys[mid].compareNumber(low) < 0) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            return from;
+        }
+
+        // Position of the first key that is not less than key
+        int find(SortKey key) {
+            int low = 0;
+            int high = size;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final SlotList[] postings = new SlotList[ORDER + 1];
+        Leaf prev;
+        Leaf next;
+
+        Node insert(SortKey key, int slot) {
+            int i = find(key);
+            if(i < size && keys[i].equals(key)) {
+                postings[i].add(slot);
+                return null;
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(postings, i, postings, i + 1, size - i);
+            keys[i] = key;
+            postings[i] = new SlotList();
+            postings[i].add(slot);
+            size++;
+            if(size <= ORDER) {
+                return null;
+            }
+            Leaf right = new Leaf();
+            int half = size / 2;
+            right.size = size - half;
+            System.arraycopy(keys, half, right.keys, 0, right.size);
+            System.arraycopy(postings, half, right.postings, 0, right.size);
+            Arrays.fill(keys, half, size, null);
+            Arrays.fill(postings, half, size, null);
+            size = half;
+            right.next = next;
+            right.prev = this;
+            if(next != null) {
+                next.prev = right;
+            }
+            next = right;
+            return right;
+        }
+
+        void removeAt(int i) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(postings, i + 1, postings, i, size - i - 1);
+            size--;
+            keys[size] = null;
+            postings[size] = null;
+        }
+
+        Leaf leafFor(SortKey key) {
+            return this;
+        }
+
+        Leaf firstLeaf() {
+            return this;
+        }
+
+        Leaf lastLeaf() {
+            return this;
+        }
+
+        Leaf leafFrom(SortKey low) {
+            return this;
+        }
+
+        SortKey separator() {
+            return keys[0];
+        }
+    }
+
+    private static final class Inner extends Node {
+        // children[i] holds the keys below keys[i], children[i + 1] those from keys[i] on
+        final Node[] children = new Node[ORDER + 2];
+        // Set when this node was split off: the middle key that moved up
+        SortKey promoted;
+
+        private int childFor(SortKey key) {
+            int i = find(key);
+            // A key equal to a separator belongs to the child on its right
+            if(i < size && keys[i].compareTo(key) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        Node insert(SortKey key, int slot) {
+            int c = childFor(key);
+            Node sibling = children[c].insert(key, slot);
+            if(sibling == null) {
+                return null;
+            }
+            System.arraycopy(keys, c, keys, c + 1, size - c);
+            System.arraycopy(children, c + 1, children, c + 2, size - c);
+            keys[c] = sibling.separator();
+            children[c + 1] = sibling;
+            size++;
+            if(size <= ORDER) {
+                return null;
+            }
+            // The middle key moves up, the keys after it go to the new right node
+            Inner right = new Inner();
+            int middle = size / 2;
+            right.size = size - middle - 1;
+            System.arraycopy(keys, middle + 1, right.keys, 0, right.size);
+            System.arraycopy(children, middle + 1, right.children, 0, right.size + 1);
+            right.promoted = keys[middle];
+            Arrays.fill(keys, middle, size, null);
+            Arrays.fill(children, middle + 1, size + 1, null);
+            size = middle;
+            return right;
+        }
+
+
+        Leaf leafFor(SortKey key) {
+            return children[childFor(key)].leafFor(key);
+        }
+
+        Leaf firstLeaf() {
+            return children[0].firstLeaf();
+        }
+
+        Leaf lastLeaf() {
+            return children[size].lastLeaf();
+        }
+
+        Leaf leafFrom(SortKey low) {
+            return children[countBelow(low)].leafFrom(low);
+        }
+
+        SortKey separator() {
+            return promoted;
+        }
+    }
+}
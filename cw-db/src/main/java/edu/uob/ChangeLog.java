@@ -0,0 +1,510 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the changes made to one database since its table files were
+ * last written. Every change is appended as one small record before it is applied in memory,
+ * so a mutation costs a few bytes of I/O instead of a rewrite of the whole table.
+ * On startup the table file snapshots are loaded and then the log is replayed on top of them.
+ *
+ * Each record is framed as [payload length][CRC32 of payload][payload], so a record that was
+ * only half written when the server died is recognised and ignored during replay. The changes
+ * of a transaction are held back until COMMIT and then appended inside a single record. The rows
+ * of a LOAD DATA take several records, which only count once the LOAD_END after them is there.
+ */
+class ChangeLog {
+    static final String FILE_NAME = "changes.log";
+
+    private static final byte CREATE_TABLE = 1;
+    private static final byte DROP_TABLE = 2;
+    private static final byte ADD_COLUMN = 3;
+    private static final byte DROP_COLUMN = 4;
+    private static final byte UPDATE = 6;
+    private static final byte DELETE = 7;
+    private static final byte CREATE_INDEX = 8;
+    private static final byte DROP_INDEX = 9;
+    private static final byte CREATE_BTREE_INDEX = 10;
+    private static final byte TRANSACTION = 11;
+    private static final byte INSERT_ROWS = 12;
+    // Rows of a LOAD DATA, laid out like INSERT_ROWS, and the marker that ends the load
+    private static final byte LOAD_ROWS = 13;
+    private static final byte LOAD_END = 14;
+
+    private final File file;
+    // Opened on the first write, so databases nobody changes don't hold a file handle
+    private FileChannel channel;
+    // Logical positions: bytes appended over the log's lifetime, and how many of those are known
+    // to be on disk. They keep growing when the file is truncated so waiters can compare them.
+    // A log left over from before a restart counts as written.
+    private long writtenPosition;
+    private long forcedPosition;
+    // Logical position of the first byte in the file
+    private long truncatedPosition = 0;
+    private String forceError = null;
+
+    ChangeLog(File file) {
+        this.file = file;
+        this.writtenPosition = file.length();
+        this.forcedPosition = writtenPosition;
+    }
+
+    static Record createTable(Table table) {
+        Record r = new Record(CREATE_TABLE, table.name);
+        List<String> columns = table.getColumns();
+        r.writeInt(columns.size() - 1);
+        for(int i=1; i<columns.size(); i++) {
+            r.writeString(columns.get(i));
+        }
+        return r;
+    }
+
+    static Record dropTable(String tableName) {
+        return new Record(DROP_TABLE, tableName);
+    }
+
+    static Record addColumn(String tableName, String colName) {
+        Record r = new Record(ADD_COLUMN, tableName);
+        r.writeString(colName);
+        return r;
+    }
+
+    static Record dropColumn(String tableName, String colName) {
+        Record r = new Record(DROP_COLUMN, tableName);
+        r.writeString(colName);
+        return r;
+    }
+
+    static Record createIndex(String tableName, String colName, boolean ordered) {
+        Record r = new Record(ordered ? CREATE_BTREE_INDEX : CREATE_INDEX, tableName);
+        r.writeString(colName);
+        return r;
+    }
+
+    static Record dropIndex(String tableName, String colName) {
+        Record r = new Record(DROP_INDEX, tableName);
+        r.writeString(colName);
+        return r;
+    }
+
+    // Rows with consecutive ids from firstId, each with the user-defined columns in table order
+    static Record insertRows(String tableName, int firstId, List<List<String>> rows) {
+        Record r = new Record(INSERT_ROWS, tableName);
+        r.writeInt(firstId);
+        r.writeInt(rows.size());
+        r.writeInt(rows.get(0).size());
+        for(List<String> values : rows) {
+            for(String v : values) {
+                r.writeString(v);
+            }
+        }
+        return r;
+    }
+
+    // The rows in slots from to to of a table, which were given consecutive ids, laid out like
+    // insertRows. They are one of the records of a load, which replay drops unless loadEnd follows.
+    static Record loadRows(Table table, int from, int to) {
+        Record r = new Record(LOAD_ROWS, table.name);
+        r.writeInt(table.ids[from]);
+        r.writeInt(to - from);
+        r.writeInt(table.cells.size());
+        for(int slot=from; slot<to; slot++) {
+            for(Column column : table.cells) {
+                r.writeString(column.get(slot));
+            }
+        }
+        return r;
+    }
+
+    static Record loadEnd(String tableName) {
+        return new Record(LOAD_END, tableName);
+    }
+
+    static Record update(Table table, Map<String, String> newValues, int[] slots) {
+        Record r = new Record(UPDATE, table.name);
+        r.writeInt(newValues.size());
+        for(Map.Entry<String, String> e : newValues.entrySet()) {
+            r.writeString(e.getKey());
+            r.writeString(e.getValue());
+        }
+        r.writeIds(table, slots);
+        return r;
+    }
+
+    static Record delete(Table table, int[] slots) {
+        Record r = new Record(DELETE, table.name);
+        r.writeIds(table, slots);
+        return r;
+    }
+
+    boolean isEmpty() {
+        return file.length() == 0;
+    }
+
+    // Bytes appended since the log was last truncated
+    synchronized long size() {
+        return writtenPosition - truncatedPosition;
+    }
+
+    // Applies every intact record in the log to db, returns how many were applied
+    int replay(Database db) {
+        if(!file.exists()) {
+            return 0;
+        }
+        int applied = 0;
+        // Tables with a load whose LOAD_END hasn't been seen yet, and their rows from before it
+        Map<Table, Table> loads = new HashMap<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xFFFFFFFFL;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if(checksum(payload) != checksum) {
+                        System.err.println("Ignoring corrupt change log record in " + file.getAbsolutePath());
+                        break;
+                    }
+                } catch(EOFException e) {
+                    // End of the log, or a record cut short by a crash
+                    break;
+                }
+                apply(db, new DataInputStream(new ByteArrayInputStream(payload)), loads);
+                applied++;
+            }
+        } catch(IOException e) {
+            System.err.println("Failed to replay change log: " + file.getAbsolutePath());
+        }
+        // Loads cut short by a crash
+        for(Map.Entry<Table, Table> load : loads.entrySet()) {
+            load.getKey().restore(load.getValue());
+        }
+        return applied;
+    }
+
+    // The position a checkpoint's snapshots match, see truncateTo
+    synchronized long position() {
+        return writtenPosition;
+    }
+
+    // Called once the tables have been written out as they were at position; the records before it
+    // are dropped. Records appended since are copied to a new file that then replaces the log, so a
+    // crash leaves one or the other. Everything left is on disk by now, so anyone waiting for a
+    // logged change to become durable is released.
+    synchronized void truncateTo(long position) {
+        try {
+            if(position == writtenPosition) {
+                if(channel != null) {
+                    channel.truncate(0);
+                    channel.force(false);
+                } else if(file.exists()) {
+                    try(FileChannel emptied = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        emptied.truncate(0);
+                        emptied.force(false);
+                    }
+                }
+            } else {
+                File rest = new File(file.getParentFile(), file.getName() + ".tmp");
+                try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(rest.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long from = position - truncatedPosition;
+                    long length = writtenPosition - position;
+                    for(long copied=0; copied<length; ) {
+                        copied += in.transferTo(from + copied, length - copied, out);
+                    }
+                    out.force(false);
+                }
+                TableFile.replace(rest, file);
+                if(channel != null) {
+                    // Reopened by the next append
+                    channel.close();
+                    channel = null;
+                }
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to truncate change log " + file.getAbsolutePath(), e);
+        }
+        truncatedPosition = position;
+        forcedPosition = writtenPosition;
+        forceError = null;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        if(channel == null) {
+            return;
+        }
+        try {
+            // Anyone still waiting for a group commit on this log is released first
+            channel.force(false);
+            forcedPosition = writtenPosition;
+            channel.close();
+        } catch(IOException e) {
+            System.err.println("Failed to close change log: " + file.getAbsolutePath());
+        }
+        channel = null;
+        notifyAll();
+    }
+
+    // The changes of a transaction as one record, so that a crash keeps all of them or none
+    static Record transaction(List<Record> records) {
+        Record r = new Record(TRANSACTION);
+        r.writeInt(records.size());
+        for(Record record : records) {
+            r.writeInt(record.bytes.size());
+            r.bytes.write(record.bytes.toByteArray(), 0, record.bytes.size());
+        }
+        return r;
+    }
+
+    // Appends a record and returns the log position the caller has to wait for to see it on disk
+    synchronized long append(Record r) {
+        byte[] payload = r.bytes.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) checksum(payload));
+        buffer.put(payload);
+        buffer.flip();
+        try {
+            if(channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to write change log " + file.getAbsolutePath(), e);
+        }
+        writtenPosition += buffer.limit();
+        return writtenPosition;
+    }
+
+    // Flushes everything written so far to disk. The fsync itself runs without holding the lock,
+    // so other sessions can keep appending (and join the next group commit) meanwhile.
+    void force() {
+        long target;
+        FileChannel ch;
+        synchronized(this) {
+            target = writtenPosition;
+            ch = channel;
+            if(ch == null || target <= forcedPosition) {
+                return;
+            }
+        }
+        String error = null;
+        try {
+            ch.force(false);
+        } catch(IOException e) {
+            error = "Failed to flush change log " + file.getAbsolutePath();
+        }
+        synchronized(this) {
+            if(ch != channel) {
+                // Closed or replaced by truncateTo meanwhile, both of which put everything on disk first
+            } else if(error != null) {
+                forceError = error;
+            } else if(target > forcedPosition) {
+                forcedPosition = target;
+                forceError = null;
+            }
+            notifyAll();
+        }
+    }
+
+    synchronized void awaitForced(long position) {
+        while(forcedPosition < position && channel != null) {
+            if(forceError != null) {
+                throw new RuntimeException(forceError);
+            }
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the change log to be flushed");
+            }
+        }
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static void apply(Database db, DataInputStream in, Map<Table, Table> loads) throws IOException {
+        byte op = in.readByte();
+        if(op == TRANSACTION) {
+            int count = in.readInt();
+            for(int i=0; i<count; i++) {
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                apply(db, new DataInputStream(new ByteArrayInputStream(payload)), loads);
+            }
+            return;
+        }
+        String tableName = readString(in);
+        if(op != LOAD_ROWS && op != LOAD_END && !loads.isEmpty()) {
+            // A load holds its table until it's done, so another change to the table means it failed
+            abandonLoad(db, tableName, loads);
+        }
+        if(op == CREATE_TABLE) {
+            int count = in.readInt();
+            List<String> columns = new ArrayList<>();
+            for(int i=0; i<count; i++) {
+                columns.add(readString(in));
+            }
+            db.putTable(new Table(tableName, columns));
+            return;
+        }
+        if(op == DROP_TABLE) {
+            db.removeTable(tableName);
+            return;
+        }
+
+        Table table = db.getTable(tableName);
+        if(table == null) {
+            // The table was dropped later on in the log
+            return;
+        }
+        switch(op) {
+            case ADD_COLUMN: {
+                // Already there if a checkpoint wrote the table out but the log wasn't cut back
+                String column = readString(in);
+                if(!table.hasColumn(column)) {
+                    table.addColumn(column);
+                }
+                break;
+            }
+            case DROP_COLUMN:
+                table.dropColumn(readString(in));
+                break;
+            case INSERT_ROWS:
+                insertRows(table, in);
+                break;
+            case LOAD_ROWS:
+                loads.computeIfAbsent(table, Table::snapshot);
+                insertRows(table, in);
+                break;
+            case UPDATE: {
+                int count = in.readInt();
+                Map<String, String> newValues = new LinkedHashMap<>();
+                for(int i=0; i<count; i++) {
+                    newValues.put(readString(in), readString(in));
+                }
+                table.updateRows(table.findSlots(readIds(in)), newValues);
+                break;
+            }
+            case DELETE:
+                table.deleteRows(table.findSlots(readIds(in)));
+                break;
+            case CREATE_INDEX:
+                table.createIndex(readString(in));
+                break;
+            case CREATE_BTREE_INDEX:
+                table.createIndex(readString(in), true);
+                break;
+            case DROP_INDEX:
+                table.dropIndex(readString(in));
+                break;
+            case LOAD_END:
+                loads.remove(table);
+                break;
+            default:
+                throw new IOException("Unknown change log record type " + op);
+        }
+    }
+
+    private static void insertRows(Table table, DataInputStream in) throws IOException {
+        int firstId = in.readInt();
+        int count = in.readInt();
+        int width = in.readInt();
+        List<List<String>> rows = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            List<String> values = new ArrayList<>();
+            for(int c=0; c<width; c++) {
+                values.add(readString(in));
+            }
+            rows.add(values);
+        }
+        // Ids are never handed out twice, so rows below nextId are in the table file already, or were
+        // deleted since. They are replayed again when a crash came between a checkpoint writing the
+        // table files and cutting back the log.
+        int skip = Math.max(0, Math.min(count, table.nextId - firstId));
+        if(skip < count) {
+            table.insertRows(firstId + skip, rows.subList(skip, count));
+        }
+    }
+
+    // Puts back the rows a load added to the table, if it has one without its LOAD_END
+    private static void abandonLoad(Database db, String tableName, Map<Table, Table> loads) {
+        Table table = db.getTable(tableName);
+        Table before = table == null ? null : loads.remove(table);
+        if(before != null) {
+            table.restore(before);
+        }
+    }
+
+    private static Set<Integer> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<Integer> ids = new HashSet<>();
+        for(int i=0; i<count; i++) {
+            ids.add(in.readInt());
+        }
+        return ids;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Payload of one log record: the operation, the table, then operation-specific fields
+    static class Record {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Record(byte op, String tableName) {
+            this(op);
+            writeString(tableName);
+        }
+
+        private Record(byte op) {
+            try {
+                out.writeByte(op);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Unlike writeUTF this has no 64KB limit
+        void writeString(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(encoded.length);
+            bytes.write(encoded, 0, encoded.length);
+        }
+
+        void writeIds(Table table, int[] slots) {
+            writeInt(slots.length);
+            for(int slot : slots) {
+                writeInt(table.ids[slot]);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package edu.uob;
+
+/**
+ * Decides when a database's change log is folded into its table files. A background thread
+ * checks every database once a second and checkpoints those whose log has grown past
+ * maxLogBytes, or that have logged changes and weren't checkpointed for intervalMillis.
+ * Statements themselves only ever append to the log; this bounds how much of it has to be
+ * replayed after a crash.
+ */
+class Checkpointer {
+    // How often the thread looks at the databases, at most
+    private static final long POLL_MILLIS = 1000;
+
+    private final long intervalMillis;
+    private final long maxLogBytes;
+    private Thread thread = null;
+    private boolean stopped = false;
+
+    Checkpointer(long intervalMillis, long maxLogBytes) {
+        this.intervalMillis = intervalMillis;
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    // Settings come from -Ddb.checkpointMillis and -Ddb.checkpointLogBytes, an interval of 0 turns the thread off
+    static Checkpointer fromSystemProperties() {
+        long interval = Long.parseLong(System.getProperty("db.checkpointMillis", "60000"));
+        long logBytes = Long.parseLong(System.getProperty("db.checkpointLogBytes", String.valueOf(16L * 1024 * 1024)));
+        return new Checkpointer(interval, logBytes);
+    }
+
+    boolean isDue(Database db, long now) {
+        long logged = db.changeLog.size();
+        return logged >= maxLogBytes || (logged > 0 && now - db.lastCheckpointMillis >= intervalMillis);
+    }
+
+    // Starts the thread, which calls task every poll; task checkpoints the databases that are due
+    synchronized void start(Runnable task) {
+        if(thread != null || intervalMillis <= 0) {
+            return;
+        }
+        long poll = Math.min(intervalMillis, POLL_MILLIS);
+        thread = new Thread(() -> {
+            while(awaitNextPoll(poll)) {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    System.err.println("Checkpoint failed: " + e.getMessage());
+                }
+            }
+        }, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Waits for the next poll, returns false once stop() has been called
+    private synchronized boolean awaitNextPoll(long poll) {
+        long deadline = System.currentTimeMillis() + poll;
+        long left = poll;
+        while(!stopped && left > 0) {
+            try {
+                wait(left);
+            } catch(InterruptedException e) {
+                return false;
+            }
+            left = deadline - System.currentTimeMillis();
+        }
+        return !stopped;
+    }
+
+    // Stops the thread, after the checkpoint it may be in the middle of
+    void stop() {
+        Thread running;
+        synchronized(this) {
+            stopped = true;
+            notifyAll();
+            running = thread;
+        }
+        if(running == null) {
+            return;
+        }
+        try {
+            running.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * The values of one user-defined column of a {@link Table}, indexed by row slot. The column
+ * name is kept once by the table instead of once per row, and the values themselves are held
+ * in whichever {@link ColumnEncoding} suits them: bit-packed deltas for integers, doubles for
+ * other numbers, a dictionary of codes for text that repeats (flags, country codes, ...)
+ * and plain strings for the rest.
+ *
+ * The slots are split into segments of SEGMENT_ROWS, each with its own encoding. A
+ * {@link #snapshot()} shares the segments instead of copying them; a segment that may be
+ * shared is copied by the next change to it, so the snapshot keeps seeing the old values.
+ */
+class Column {
+    private static final int SEGMENT_BITS = 16;
+    static final int SEGMENT_ROWS = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_ROWS - 1;
+    private static final int INITIAL_CAPACITY = 16;
+    // A dictionary is worth it while there are at most this many distinct values,
+    // or while each distinct value is used by at least two rows on average
+    private static final int SMALL_DICTIONARY = 256;
+
+    private Segment[] segments = new Segment[4];
+    private int segmentCount = 0;
+    private int size = 0;
+    // Bumped by every snapshot. Segments made before the last snapshot may be shared with it.
+    private int generation = 0;
+
+    // A column of the given size holding the same value in every slot
+    static Column filled(int size, String value) {
+        Column column = new Column();
+        for(int i=0; i<size; i++) {
+            column.add(value);
+        }
+        return column;
+    }
+
+    String get(int slot) {
+        return segments[slot >>> SEGMENT_BITS].data.get(slot & SEGMENT_MASK);
+    }
+
+    // The encoding of the first segment, which holds the oldest rows
+    String encoding() {
+        return segmentCount == 0 ? "numeric" : segments[0].data.name();
+    }
+
+    IntPredicate matching(Condition.Comparison condition) {
+        if(segmentCount <= 1) {
+            // Slots of the first segment are its own slots
+            return segmentCount == 0 ? slot -> false : segments[0].data.matching(condition);
+        }
+        ColumnEncoding[] data = new ColumnEncoding[segmentCount];
+        boolean same = true;
+        for(int i=0; i<segmentCount; i++) {
+            data[i] = segments[i].data;
+            same &= data[i].getClass() == data[0].getClass();
+        }
+        if(same) {
+            return data[0].matching(condition, data, SEGMENT_BITS);
+        }
+        return ColumnEncoding.matchingEach(condition, data, SEGMENT_BITS);
+    }
+
+    void add(String value) {
+        int index = size >>> SEGMENT_BITS;
+        if(index == segmentCount) {
+            if(segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments, segmentCount * 2);
+            }
+            segments[segmentCount++] = new Segment(INITIAL_CAPACITY, generation);
+        }
+        Segment segment = writable(index);
+        if(segment.size == segment.capacity) {
+            segment.capacity *= 2;
+            segment.data.grow(segment.capacity);
+        }
+        segment.size++;
+        size++;
+        set(size - 1, value);
+    }
+
+    void set(int slot, String value) {
+        Segment segment = writable(slot >>> SEGMENT_BITS);
+        if(!segment.data.set(slot & SEGMENT_MASK, value)) {
+            segment.reencode(slot & SEGMENT_MASK, value);
+        }
+    }
+
+    // Closes the gaps left by the removed slots (ascending), keeping the remaining values in order.
+    // The segments from the first removed slot on are built again rather than changed in place.
+    void remove(int[] removed) {
+        int first = removed[0] >>> SEGMENT_BITS;
+        String[] kept = new String[size - first * SEGMENT_ROWS - removed.length];
+        int count = 0;
+        int next = 0;
+        for(int slot=first*SEGMENT_ROWS; slot<size; slot++) {
+            if(next < removed.length && removed[next] == slot) {
+                next++;
+                continue;
+            }
+            kept[count++] = get(slot);
+        }
+        Arrays.fill(segments, first, segmentCount, null);
+        segmentCount = first;
+        size = first * SEGMENT_ROWS;
+        for(String value : kept) {
+            add(value);
+        }
+    }
+
+    // Picks the encoding again from the values currently held, e.g. once a table has been loaded
+    void reencode() {
+        for(int i=0; i<segmentCount; i++) {
+            Segment segment = writable(i);
+            segment.data = encode(segment.values(-1, null), segment.capacity);
+        }
+    }
+
+    // A read-only copy of the column as it is now, sharing its segments
+    Column snapshot() {
+        Column copy = new Column();
+        copy.segments = Arrays.copyOf(segments, Math.max(segmentCount, 1));
+        copy.segmentCount = segmentCount;
+        copy.size = size;
+        generation++;
+        copy.generation = generation;
+        return copy;
+    }
+
+    // The segment at index, copied first if a snapshot may still be reading it
+    private Segment writable(int index) {
+        Segment segment = segments[index];
+        if(segment.generation != generation) {
+            segment = segment.copy(generation);
+            segments[index] = segment;
+        }
+        return segment;
+    }
+
+    /** Up to SEGMENT_ROWS consecutive slots of a column and the encoding holding them. */
+    private static class Segment {
+        ColumnEncoding data;
+        int size = 0;
+        int capacity;
+        // The column's generation when this segment was made
+        final int generation;
+
+        Segment(int capacity, int generation) {
+            this.capacity = capacity;
+            this.generation = generation;
+            data = new ColumnEncoding.Numeric(capacity, 0, 0);
+        }
+
+        Segment copy(int generation) {
+            Segment copy = new Segment(0, generation);
+            copy.data = data.copy();
+            copy.size = size;
+            copy.capacity = capacity;
+            return copy;
+        }
+
+        // The current encoding can't hold value, so everything is re-encoded with it in place
+        void reencode(int slot, String value) {
+            data = encode(values(slot, value), capacity);
+        }
+
+        // The values held, with the one in slot replaced by value
+        private String[] values(int slot, String value) {
+            String[] values = new String[size];
+            for(int i=0; i<size; i++) {
+                values[i] = i == slot ? value : data.get(i);
+            }
+            return values;
+        }
+    }
+
+    private static ColumnEncoding encode(String[] values, int capacity) {
+        boolean integers = true;
+        boolean numbers = true;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for(String v : values) {
+            if(integers && ColumnEncoding.Numeric.accepts(v)) {
+                long n = Long.parseLong(v);
+                min = Math.min(min, n);
+                max = Math.max(max, n);
+                continue;
+            }
+            integers = false;
+            if(!ColumnEncoding.Floating.accepts(v)) {
+                numbers = false;
+                break;
+            }
+        }
+        ColumnEncoding encoded;
+        if(integers) {
+            encoded = values.length == 0 ? new ColumnEncoding.Numeric(capacity, 0, 0)
+                    : new ColumnEncoding.Numeric(capacity, min, max);
+        } else if(numbers) {
+            encoded = new ColumnEncoding.Floating(capacity);
+        } else {
+            Set<String> distinct = new HashSet<>();
+            for(String v : values) {
+                distinct.add(v);
+            }
+            int limit = Math.max(SMALL_DICTIONARY, values.length / 2);
+            if(distinct.size() <= limit) {
+                // Room to grow before the choice is looked at again
+                encoded = new ColumnEncoding.Dictionary(capacity, Math.max(SMALL_DICTIONARY, values.length));
+            } else {
+                encoded = new ColumnEncoding.Plain(capacity);
+            }
+        }
+        for(int i=0; i<values.length; i++) {
+            encoded.set(i, values[i]);
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,324 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * How the values of one {@link Column} are laid out in memory. {@link Column} picks the
+ * encoding from the values it holds and switches to another one when a new value doesn't fit.
+ */
+abstract class ColumnEncoding {
+
+    abstract String name();
+
+    abstract String get(int slot);
+
+    // Stores value in slot, or returns false (changing nothing) if this encoding can't hold it
+    abstract boolean set(int slot, String value);
+
+    abstract void grow(int capacity);
+
+    // An independent copy holding the same values in the same form
+    abstract ColumnEncoding copy();
+
+    // The WHERE test for this column, working on the encoded form where it can
+    abstract IntPredicate matching(Condition.Comparison condition);
+
+    // The WHERE test over a column split into segments of 1 << shift slots, all of which use this
+    // encoding. The numeric encodings read the segments directly instead of going through one test
+    // per segment, which saves a call per row in what is otherwise a very tight loop.
+    IntPredicate matching(Condition.Comparison condition, ColumnEncoding[] segments, int shift) {
+        return matchingEach(condition, segments, shift);
+    }
+
+    // Tests each segment with its own matching(condition), whatever their encodings
+    static IntPredicate matchingEach(Condition.Comparison condition, ColumnEncoding[] segments, int shift) {
+        IntPredicate[] tests = new IntPredicate[segments.length];
+        for(int i=0; i<segments.length; i++) {
+            tests[i] = segments[i].matching(condition);
+        }
+        int mask = (1 << shift) - 1;
+        return slot -> tests[slot >>> shift].test(slot & mask);
+    }
+
+    /** One String reference per slot, for columns where most values are different. */
+    static class Plain extends ColumnEncoding {
+        private String[] values;
+
+        Plain(int capacity) {
+            values = new String[capacity];
+        }
+
+        String name() {
+            return "plain";
+        }
+
+        String get(int slot) {
+            return values[slot];
+        }
+
+        boolean set(int slot, String value) {
+            values[slot] = value;
+            return true;
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        ColumnEncoding copy() {
+            Plain copy = new Plain(0);
+            copy.values = values.clone();
+            return copy;
+        }
+
+        IntPredicate matching(Condition.Comparison condition) {
+            return slot -> condition.matches(values[slot]);
+        }
+    }
+
+    /**
+     * Each distinct value is stored once, slots hold bit-packed codes into the dictionary.
+     * Codes of values that were overwritten stay in the dictionary until the column is re-encoded.
+     */
+    static class Dictionary extends ColumnEncoding {
+        private final List<String> dictionary = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+        // Once this many distinct values are seen the column is re-encoded
+        private final int maxEntries;
+        private PackedInts slots;
+        private int capacity;
+
+        Dictionary(int capacity, int maxEntries) {
+            this.capacity = capacity;
+            this.maxEntries = maxEntries;
+            this.slots = new PackedInts(capacity, 0);
+        }
+
+        String name() {
+            return "dictionary";
+        }
+
+        String get(int slot) {
+            return dictionary.get((int) slots.get(slot));
+        }
+
+        boolean set(int slot, String value) {
+            Integer code = codes.get(value);
+            if(code == null) {
+                if(dictionary.size() >= maxEntries) {
+                    return false;
+                }
+                code = dictionary.size();
+                dictionary.add(value);
+                codes.put(value, code);
+                if(code > slots.maxValue()) {
+                    slots = slots.withBits(PackedInts.bitsFor(code), capacity, capacity);
+                }
+            }
+            slots.set(slot, code);
+            return true;
+        }
+
+        void grow(int capacity) {
+            this.capacity = capacity;
+            slots.grow(capacity);
+        }
+
+        ColumnEncoding copy() {
+            Dictionary copy = new Dictionary(0, maxEntries);
+            copy.dictionary.addAll(dictionary);
+            copy.codes.putAll(codes);
+            copy.slots = slots.copy();
+            copy.capacity = capacity;
+            return copy;
+        }
+
+        // Each distinct value is tested once, rows are then matched by their code
+        IntPredicate matching(Condition.Comparison condition) {
+            boolean[] matches = new boolean[dictionary.size()];
+            for(int code=0; code<matches.length; code++) {
+                matches[code] = condition.matches(dictionary.get(code));
+            }
+            return slot -> matches[(int) slots.get(slot)];
+        }
+    }
+
+    /**
+     * Integers (see {@link ValueType}) of at most 9 digits, stored as
+     * bit-packed non-negative deltas from a base value. Anything else is rejected so that every
+     * value reads back exactly as it was written.
+     */
+    static class Numeric extends ColumnEncoding {
+        private static final int MAX_DIGITS = 9;
+
+        private long base;
+        private PackedInts deltas;
+        private int capacity;
+
+        Numeric(int capacity, long min, long max) {
+            this.capacity = capacity;
+            this.base = min;
+            this.deltas = new PackedInts(capacity, PackedInts.bitsFor(max - min));
+        }
+
+        static boolean accepts(String value) {
+            return ValueType.of(value) == ValueType.INTEGER
+                    && value.length() - (value.startsWith("-") ? 1 : 0) <= MAX_DIGITS;
+        }
+
+        String name() {
+            return "numeric";
+        }
+
+        String get(int slot) {
+            return String.valueOf(base + deltas.get(slot));
+        }
+
+        boolean set(int slot, String value) {
+            if(!accepts(value)) {
+                return false;
+            }
+            long number = Long.parseLong(value);
+            if(number < base || number - base > deltas.maxValue()) {
+                widen(number);
+            }
+            deltas.set(slot, number - base);
+            return true;
+        }
+
+        // Re-packs every slot so number fits. The new range is at least twice the old one,
+        // so a column only gets re-packed a handful of times however its values drift.
+        private void widen(long number) {
+            long low = Math.min(base, number);
+            long high = Math.max(base + deltas.maxValue(), number);
+            int bits = PackedInts.bitsFor(high - low) + 1;
+            long slack = ((1L << bits) - 1) - (high - low);
+            long newBase = number < base ? low - slack : low;
+            PackedInts wider = new PackedInts(capacity, bits);
+            for(int i=0; i<capacity; i++) {
+                wider.set(i, base + deltas.get(i) - newBase);
+            }
+            base = newBase;
+            deltas = wider;
+        }
+
+        void grow(int capacity) {
+            this.capacity = capacity;
+            deltas.grow(capacity);
+        }
+
+        ColumnEncoding copy() {
+            Numeric copy = new Numeric(0, base, base);
+            copy.deltas = deltas.copy();
+            copy.capacity = capacity;
+            return copy;
+        }
+
+        IntPredicate matching(Condition.Comparison condition) {
+            if(condition.comparesNumbers()) {
+                return slot -> condition.matchesInteger(base + deltas.get(slot));
+            }
+            return slot -> condition.matches(get(slot));
+        }
+
+        IntPredicate matching(Condition.Comparison condition, ColumnEncoding[] segments, int shift) {
+            if(!condition.comparesNumbers()) {
+                return matchingEach(condition, segments, shift);
+            }
+            long[] bases = new long[segments.length];
+            PackedInts[] deltas = new PackedInts[segments.length];
+            for(int i=0; i<segments.length; i++) {
+                bases[i] = ((Numeric) segments[i]).base;
+                deltas[i] = ((Numeric) segments[i]).deltas;
+            }
+            int mask = (1 << shift) - 1;
+            return slot -> condition.matchesInteger(bases[slot >>> shift] + deltas[slot >>> shift].get(slot & mask));
+        }
+    }
+
+    /**
+     * Integers and floats stored as doubles, for values that read back unchanged from
+     * Double.toString (72.5 does, 72.50 doesn't). A bit per slot records whether the value
+     * was written as an integer.
+     */
+    static class Floating extends ColumnEncoding {
+        // Integers up to this many digits are exact in a double
+        private static final int MAX_INTEGER_DIGITS = 15;
+
+        private double[] values;
+        private PackedInts integral;
+        private int capacity;
+
+        Floating(int capacity) {
+            this.capacity = capacity;
+            this.values = new double[capacity];
+            this.integral = new PackedInts(capacity, 1);
+        }
+
+        static boolean accepts(String value) {
+            ValueType type = ValueType.of(value);
+            if(type == ValueType.INTEGER) {
+                return value.length() - (value.startsWith("-") ? 1 : 0) <= MAX_INTEGER_DIGITS;
+            }
+            return type == ValueType.FLOAT && Double.toString(Double.parseDouble(value)).equals(value);
+        }
+
+        String name() {
+            return "floating";
+        }
+
+        String get(int slot) {
+            if(integral.get(slot) == 1) {
+                return String.valueOf((long) values[slot]);
+            }
+            return Double.toString(values[slot]);
+        }
+
+        boolean set(int slot, String value) {
+            if(!accepts(value)) {
+                return false;
+            }
+            values[slot] = Double.parseDouble(value);
+            integral.set(slot, value.indexOf('.') < 0 ? 1 : 0);
+            return true;
+        }
+
+        void grow(int capacity) {
+            this.capacity = capacity;
+            values = Arrays.copyOf(values, capacity);
+            integral.grow(capacity);
+        }
+
+        ColumnEncoding copy() {
+            Floating copy = new Floating(0);
+            copy.values = values.clone();
+            copy.integral = integral.copy();
+            copy.capacity = capacity;
+            return copy;
+        }
+
+        IntPredicate matching(Condition.Comparison condition) {
+            if(condition.comparesNumbers()) {
+                return slot -> condition.matchesNumber(values[slot]);
+            }
+            return slot -> condition.matches(get(slot));
+        }
+
+        IntPredicate matching(Condition.Comparison condition, ColumnEncoding[] segments, int shift) {
+            if(!condition.comparesNumbers()) {
+                return matchingEach(condition, segments, shift);
+            }
+            double[][] values = new double[segments.length][];
+            for(int i=0; i<segments.length; i++) {
+                values[i] = ((Floating) segments[i]).values;
+            }
+            int mask = (1 << shift) - 1;
+            return slot -> condition.matchesNumber(values[slot >>> shift][slot & mask]);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * A parsed WHERE clause: comparisons combined with AND, OR and parentheses. Before a query runs
+ * the tree is compiled against the table into one {@link IntPredicate} over row slots, with the
+ * column names resolved to ordinals once, so rows are tested without any parsing or lookups.
+ */
+abstract class Condition {
+
+    abstract Condition bind(List<Literal> args);
+
+    // Adds the name of every column the condition refers to
+    abstract void collectColumns(List<String> into);
+
+    abstract IntPredicate compile(Table table);
+
+    /**
+     * {@code column <operator> value}, where the operator is one of ==, !=, >, <, >=, <= or LIKE.
+     * Two numbers are compared by value, a quoted value is compared with the cell's text
+     * (ordering is alphabetical), and LIKE matches cells containing the value.
+     * Ordering a number against a string, or anything against a boolean, matches nothing.
+     */
+    static class Comparison extends Condition {
+        final String column;
+        final String operator;
+        final Literal value;
+        // The value as cells store it, see Literal.storedValue()
+        final String text;
+        // The literal as a typed value, set up once here rather than for every row it's tested on
+        private final ValueType type;
+        private final long longValue;
+        private final double doubleValue;
+        // What the operator makes of a cell that is less than, equal to or greater than the value
+        private final boolean acceptsLess;
+        private final boolean acceptsEqual;
+        private final boolean acceptsGreater;
+
+        Comparison(String column, String operator, Literal value) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+            this.acceptsLess = operator.equals("<") || operator.equals("<=") || operator.equals("!=");
+            this.acceptsEqual = operator.equals("==") || operator.equals("<=") || operator.equals(">=");
+            this.acceptsGreater = operator.equals(">") || operator.equals(">=") || operator.equals("!=");
+            if(value.isParameter()) {
+                // Filled in by bind()
+                this.text = null;
+                this.type = null;
+                this.longValue = 0;
+                this.doubleValue = 0;
+                return;
+            }
+            this.text = value.storedValue();
+            this.type = value.quoted ? ValueType.STRING : ValueType.of(text);
+            this.longValue = type == ValueType.INTEGER ? Long.parseLong(text) : 0;
+            this.doubleValue = type.isNumber() ? Double.parseDouble(text) : 0;
+        }
+
+        Condition bind(List<Literal> args) {
+            return new Comparison(column, operator, value.bind(args));
+        }
+
+        void collectColumns(List<String> into) {
+            into.add(column);
+        }
+
+        IntPredicate compile(Table table) {
+            return table.comparison(this);
+        }
+
+        boolean isEquality() {
+            return operator.equals("==");
+        }
+
+        // A numeric range test (> < >= <=), which an ordered index can answer
+        boolean isRange() {
+            return comparesNumbers() && !isEquality() && !operator.equals("!=");
+        }
+
+        // For a range test: whether the value is the lowest allowed, rather than the highest
+        boolean isLowerBound() {
+            return operator.startsWith(">");
+        }
+
+        // True if the test only depends on the cell's number, so numeric cells needn't be turned into text
+        boolean comparesNumbers() {
+            return type.isNumber() && !operator.equals("LIKE");
+        }
+
+        boolean matches(String cell) {
+            if(operator.equals("LIKE")) {
+                return cell.contains(text);
+            }
+            ValueType cellType = ValueType.of(cell);
+            if(type.isNumber() && cellType.isNumber()) {
+                if(type == ValueType.INTEGER && cellType == ValueType.INTEGER) {
+                    return test(Long.compare(Long.parseLong(cell), longValue));
+                }
+                return matchesNumber(Double.parseDouble(cell));
+            }
+            if(operator.equals("==")) {
+                return cell.equals(text);
+            }
+            if(operator.equals("!=")) {
+                return !cell.equals(text);
+            }
+            if(type == ValueType.STRING && cellType != ValueType.BOOLEAN) {
+                return test(cell.compareTo(text));
+            }
+            return false;
+        }
+
+        // Only valid when comparesNumbers()
+        boolean matchesInteger(long cell) {
+            if(type == ValueType.INTEGER) {
+                return test(Long.compare(cell, longValue));
+            }
+            return matchesNumber(cell);
+        }
+
+        // Only valid when comparesNumbers()
+        boolean matchesNumber(double cell) {
+            return test(cell < doubleValue ? -1 : (cell > doubleValue ? 1 : 0));
+        }
+
+        private boolean test(int comparison) {
+            return comparison < 0 ? acceptsLess : (comparison > 0 ? acceptsGreater : acceptsEqual);
+        }
+
+        @Override
+        public String toString() {
+            return column + " " + operator + " " + value;
+        }
+    }
+
+    /** Every term has to hold. Terms are tested most selective first, and stop at the first miss. */
+    static class And extends Condition {
+        final List<Condition> terms;
+
+        And(List<Condition> terms) {
+            this.terms = terms;
+        }
+
+        Condition bind(List<Literal> args) {
+            List<Condition> bound = new ArrayList<>();
+            for(Condition term : terms) {
+                bound.add(term.bind(args));
+            }
+            return new And(bound);
+        }
+
+        void collectColumns(List<String> into) {
+            for(Condition term : terms) {
+                term.collectColumns(into);
+            }
+        }
+
+        IntPredicate compile(Table table) {
+            IntPredicate[] parts = compileTerms(terms, table, Comparator.naturalOrder());
+            if(parts.length == 2) {
+                IntPredicate first = parts[0];
+                IntPredicate second = parts[1];
+                return slot -> first.test(slot) && second.test(slot);
+            }
+            return slot -> {
+                for(IntPredicate part : parts) {
+                    if(!part.test(slot)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return join(terms, " AND ");
+        }
+    }
+
+    /** At least one term has to hold. Terms most likely to hold are tested first, and stop at the first hit. */
+    static class Or extends Condition {
+        final List<Condition> terms;
+
+        Or(List<Condition> terms) {
+            this.terms = terms;
+        }
+
+        Condition bind(List<Literal> args) {
+            List<Condition> bound = new ArrayList<>();
+            for(Condition term : terms) {
+                bound.add(term.bind(args));
+            }
+            return new Or(bound);
+        }
+
+        void collectColumns(List<String> into) {
+            for(Condition term : terms) {
+                term.collectColumns(into);
+            }
+        }
+
+        IntPredicate compile(Table table) {
+            IntPredicate[] parts = compileTerms(terms, table, Comparator.reverseOrder());
+            if(parts.length == 2) {
+                IntPredicate first = parts[0];
+                IntPredicate second = parts[1];
+                return slot -> first.test(slot) || second.test(slot);
+            }
+            return slot -> {
+                for(IntPredicate part : parts) {
+                    if(part.test(slot)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return join(terms, " OR ");
+        }
+    }
+
+    // Compiles every term and sorts them by the share of rows they match in a sample of the table
+    private static IntPredicate[] compileTerms(List<Condition> terms, Table table, Comparator<Double> order) {
+        IntPredicate[] parts = new IntPredicate[terms.size()];
+        Double[] selectivity = new Double[parts.length];
+        Integer[] byOrder = new Integer[parts.length];
+        for(int i=0; i<parts.length; i++) {
+            parts[i] = terms.get(i).compile(table);
+            selectivity[i] = table.estimateSelectivity(parts[i]);
+            byOrder[i] = i;
+        }
+        Arrays.sort(byOrder, (a, b) -> order.compare(selectivity[a], selectivity[b]));
+        IntPredicate[] sorted = new IntPredicate[parts.length];
+        for(int i=0; i<parts.length; i++) {
+            sorted[i] = parts[byOrder[i]];
+        }
+        return sorted;
+    }
+
+    private static String join(List<Condition> terms, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for(Condition term : terms) {
+            if(sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append('(').append(term).append(')');
+        }
+        return sb.toString();
+    }
+}
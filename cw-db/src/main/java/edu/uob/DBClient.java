@@ -13,26 +13,39 @@ public class DBClient {
 
     public static void main(String[] args) throws IOException {
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-        Socket socket = new Socket("localhost", 8888);
-        BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        while (!Thread.interrupted()) {
-            handleNextCommand(input, socketReader, socketWriter);
+        try (Socket socket = new Socket("localhost", 8888)) {
+            BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            while (!Thread.interrupted()) {
+                if (!handleNextCommand(input, socketReader, socketWriter)) {
+                    break;
+                }
+            }
         }
     }
 
-    private static void handleNextCommand(BufferedReader commandLine, BufferedReader socketReader, BufferedWriter socketWriter) throws IOException {
+    // Returns false once there are no more commands to send, i.e. at the end of the input
+    private static boolean handleNextCommand(BufferedReader commandLine, BufferedReader socketReader, BufferedWriter socketWriter) throws IOException {
         System.out.print("SQL:> ");
         String command = commandLine.readLine();
+        if (command == null) {
+            System.out.println();
+            return false;
+        }
         socketWriter.write(command + "\n");
         socketWriter.flush();
-        String incomingMessage = socketReader.readLine();
-        if (incomingMessage == null) {
-            throw new IOException("Server disconnected (end-of-stream)");
-        }
-        while (incomingMessage != null && !incomingMessage.contains("" + END_OF_TRANSMISSION + "")) {
-            System.out.println(incomingMessage);
-            incomingMessage = socketReader.readLine();
+        // A line holding several commands gets one reply (and one END_OF_TRANSMISSION) per command
+        int expectedReplies = DBServer.splitStatements(command).size();
+        for (int i = 0; i < expectedReplies; i++) {
+            String incomingMessage = socketReader.readLine();
+            if (incomingMessage == null) {
+                throw new IOException("Server disconnected (end-of-stream)");
+            }
+            while (incomingMessage != null && !incomingMessage.contains("" + END_OF_TRANSMISSION + "")) {
+                System.out.println(incomingMessage);
+                incomingMessage = socketReader.readLine();
+            }
         }
+        return true;
     }
 }
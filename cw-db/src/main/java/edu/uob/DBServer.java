@@ -1,23 +1,35 @@
 package edu.uob;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
 
 /** This class implements the DB server. */
 public class DBServer {
 
-    private static final char END_OF_TRANSMISSION = 4;
+    static final char END_OF_TRANSMISSION = 4;
     private String storageFolderPath;
 
     public static void main(String args[]) throws IOException {
         DBServer server = new DBServer();
-        server.blockingListenOn(8888);
+        // Stopping the server (Ctrl-C) writes out the changed tables, so the next start needn't replay them
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "shutdown"));
+        if(args.length > 0 && args[0].equalsIgnoreCase("--nio")) {
+            server.nonBlockingListenOn(8888);
+        } else {
+            server.concurrentListenOn(8888);
+        }
     }
 
     /**
@@ -32,10 +44,33 @@ public class DBServer {
             System.out.println("Can't seem to create database storage folder " + storageFolderPath);
         }
         importAllDatabases();
+        checkpointer.start(() -> checkpoint(false));
     }
 
-    private final Map<String, Database> databases = new HashMap<>();
-    private String currentDatabaseName = null;
+    // Rows LOAD DATA adds to a table at a time, and puts in one change log record
+    private static final int LOAD_BATCH = 10000;
+
+    // Databases can be created and dropped while other sessions look them up
+    private final Map<String, Database> databases = new ConcurrentHashMap<>();
+    // Session used by handleCommand(String), i.e. by callers that don't manage their own
+    private final Session defaultSession = new Session();
+    // Parsed statements for recently seen command strings
+    private final PlanCache planCache = new PlanCache(1024);
+    // Replies to recent SELECTs, as long as their table hasn't changed
+    private final ResultCache resultCache = ResultCache.fromSystemProperties();
+    // Decides when a logged change may be acknowledged, see Durability
+    private final GroupCommitter committer = GroupCommitter.fromSystemProperties();
+    // Folds the change logs into the table files in the background
+    private final Checkpointer checkpointer = Checkpointer.fromSystemProperties();
+    // Tables are read from disk on first use unless -Ddb.tableLoading=eager
+    private final TableLoading tableLoading = TableLoading.valueOf(System.getProperty("db.tableLoading", "lazy").toUpperCase());
+    // Reads tables in the background, one at a time. Its thread goes away when there's nothing to load.
+    private final ExecutorService tableLoader = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "table-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     public void blockingListenOn(int portNumber) throws IOException {
         try (ServerSocket s = new ServerSocket(portNumber)) {
@@ -53,164 +88,428 @@ public class DBServer {
     }
 
     private void blockingHandleConnection(ServerSocket serverSocket) throws IOException {
-        try (Socket s = serverSocket.accept();
-             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
-
+        try (Socket s = serverSocket.accept()) {
             System.out.println("Connection established: " + serverSocket.getInetAddress());
+            serveConnection(s, defaultSession);
+        }
+    }
+
+    // Accepts connections and serves each one on its own thread with its own session,
+    // so an idle client no longer holds up everybody else
+    public void concurrentListenOn(int portNumber) throws IOException {
+        ExecutorService connectionThreads = newConnectionExecutor();
+        try (ServerSocket s = new ServerSocket(portNumber)) {
+            System.out.println("Server listening on port " + portNumber);
             while (!Thread.interrupted()) {
-                String incomingCommand = reader.readLine();
-                System.out.println("Received message: " + incomingCommand);
-                String result = handleCommand(incomingCommand);
-                writer.write(result);
+                Socket clientSocket;
+                try {
+                    clientSocket = s.accept();
+                } catch (IOException e) {
+                    System.err.println("Server encountered a non-fatal IO error:");
+                    e.printStackTrace();
+                    System.err.println("Continuing...");
+                    continue;
+                }
+                System.out.println("Connection established: " + clientSocket.getInetAddress());
+                connectionThreads.execute(() -> {
+                    try (Socket c = clientSocket) {
+                        serveConnection(c, new Session());
+                    } catch (IOException e) {
+                        System.err.println("Connection closed with an IO error: " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            connectionThreads.shutdownNow();
+        }
+    }
+
+    // Serves every connection from a single selector thread plus a small worker pool
+    public void nonBlockingListenOn(int portNumber) throws IOException {
+        new SelectorServer(this).listenOn(portNumber);
+    }
+
+    // Stops the background threads, writes out the changed tables and closes every change log, after
+    // the statements still running. The next server then starts with empty logs and loads lazily.
+    public void close() {
+        close(true);
+    }
+
+    // Without the checkpoint the logged changes are left for the next server to replay, as after a crash
+    void close(boolean checkpoint) {
+        checkpointer.stop();
+        committer.stop();
+        tableLoader.shutdown();
+        for(Database db : databases.values()) {
+            if(checkpoint && !db.checkpoint(storageFolderPath)) {
+                System.err.println("Failed to checkpoint database " + db.name + ", its change log is replayed on restart");
+            }
+            db.close();
+        }
+    }
+
+    private void serveConnection(Socket s, Session session) throws IOException {
+        try {
+            serveCommands(s, session);
+        } finally {
+            endSession(session);
+        }
+    }
+
+    private void serveCommands(Socket s, Session session) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+        while (!Thread.interrupted()) {
+            String incomingLine = reader.readLine();
+            if (incomingLine == null) {
+                // Client went away
+                return;
+            }
+            System.out.println("Received message: " + incomingLine);
+            for (String command : splitStatements(incomingLine)) {
+                // Results are written straight to the socket as they are produced
+                try (ReplyWriter reply = new ReplyWriter(writer)) {
+                    handleCommand(session, command, reply);
+                }
                 writer.write("\n" + END_OF_TRANSMISSION + "\n");
+            }
+            // Clients may pipeline commands without waiting for replies, so only flush
+            // once everything they have sent so far has been answered
+            if (!reader.ready()) {
                 writer.flush();
             }
         }
     }
 
+    // Splits a line holding several ';'-terminated commands (e.g. a pipelined batch) into
+    // one string per command. Semicolons inside quoted values don't end a command.
+    static List<String> splitStatements(String line) {
+        List<String> statements = new ArrayList<>();
+        boolean inQuotes = false;
+        int start = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\'') {
+                inQuotes = !inQuotes;
+            } else if (c == ';' && !inQuotes) {
+                statements.add(line.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        // Whatever follows the last semicolon is passed on as is, so it gets the usual error
+        String rest = line.substring(start);
+        if (!rest.isBlank() || statements.isEmpty()) {
+            statements.add(rest);
+        }
+        return statements;
+    }
+
+    // One virtual thread per connection when the runtime has them (Java 21+),
+    // otherwise a cached pool of platform threads
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * KEEP this signature (i.e. {@code edu.uob.DBServer.handleCommand(String)})
      * otherwise we won't be able to mark your submission correctly.
      */
     public String handleCommand(String command) {
+        return handleCommand(defaultSession, command);
+    }
+
+    String handleCommand(Session session, String command) {
+        StringWriter result = new StringWriter();
+        try (ReplyWriter reply = new ReplyWriter(result)) {
+            handleCommand(session, command, reply);
+        } catch (IOException e) {
+            // Can't happen when writing to a StringWriter
+            return "[ERROR] " + e.getMessage();
+        }
+        return result.toString();
+    }
+
+    // Runs a command and writes its reply to out. Large results are streamed as they are produced.
+    void handleCommand(Session session, String command, Writer out) throws IOException {
+        RowStream rows = startCommand(session, command, out);
+        boolean more = rows != null;
+        while(more) {
+            more = writeMore(rows, out);
+        }
+    }
+
+    // Runs a command and writes its reply to out, except for the rows of a query result. Those are
+    // returned (null if there are none) for the caller to write with writeMore() as fast as its client
+    // reads them; the query has released its table locks by then.
+    RowStream startCommand(Session session, String command, Writer out) throws IOException {
         if(command == null || command.trim().isEmpty()) {
-            return "[ERROR] Empty or null command";
+            out.write("[ERROR] Empty or null command");
+            return null;
         }
         command = command.trim();
         if(!command.endsWith(";")) {
-            return "[ERROR] Semicolon is missing at the end of the line";
+            out.write("[ERROR] Semicolon is missing at the end of the line");
+            return null;
         }
         command = command.substring(0, command.length() - 1).trim();
 
-        String result;
         try {
-            result = parseAndRunCommand(command);
+            String reply = parseAndRunCommand(session, command, out);
+            // Wait for the change to be durable once the statement has released its locks, so
+            // statements from other sessions can run meanwhile and share the same flush
+            ChangeLog log = session.uncommittedLog;
+            if(log != null) {
+                session.uncommittedLog = null;
+                committer.awaitDurable(log, session.uncommittedPosition);
+            }
+            if(reply != null) {
+                out.write(reply);
+            }
+            RowStream rows = session.unwrittenRows;
+            session.unwrittenRows = null;
+            return rows;
+        } catch (IOException e) {
+            // The client has gone, there is nobody to report the error to
+            throw e;
         } catch (Exception e) {
-            result = "[ERROR] " + e.getMessage();
-        }
-        return result;
+            session.uncommittedLog = null;
+            session.unwrittenRows = null;
+            out.write("[ERROR] " + e.getMessage());
+            return null;
+        }
     }
 
-    private String parseAndRunCommand(String command) {
-        // 1) USE <dbname>
-        Pattern usePattern = Pattern.compile("(?i)^USE\\s+([A-Za-z0-9]+)$");
-        Matcher useMatcher = usePattern.matcher(command);
-        if(useMatcher.find()) {
-            String dbName = useMatcher.group(1);
-            return toCreateUse(dbName);
-        }
-
-        // 2) CREATE DATABASE <dbname>
-        Pattern createDBPattern = Pattern.compile("(?i)^CREATE\\s+DATABASE\\s+([A-Za-z0-9]+)$");
-        Matcher createDBMatcher = createDBPattern.matcher(command);
-        if(createDBMatcher.find()) {
-            String dbName = createDBMatcher.group(1);
-            return toCreateDatabase(dbName);
+    // Writes the next batch of rows from startCommand to out, returns false once the reply is complete
+    boolean writeMore(RowStream rows, Writer out) throws IOException {
+        try {
+            return rows.writeMore();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            out.write("[ERROR] " + e.getMessage());
+            return false;
         }
+    }
 
-        // 3) CREATE TABLE <tableName>
-        Pattern createTableWithColsPattern = Pattern.compile("(?i)^CREATE\\s+TABLE\\s+([A-Za-z0-9]+)\\s*\\((.*)\\)$");
-        Matcher createTableWithColsMatcher = createTableWithColsPattern.matcher(command);
-        if(createTableWithColsMatcher.find()) {
-            String tableName = createTableWithColsMatcher.group(1);
-            String colsRaw = createTableWithColsMatcher.group(2).trim();
-            return toCreateTable(tableName, colsRaw);
+    private String parseAndRunCommand(Session session, String command, Writer out) throws IOException {
+        Statement statement = planCache.get(command);
+        if(statement == null) {
+            statement = Parser.parse(command);
+            planCache.put(command, statement);
         }
+        return execute(session, statement, out);
+    }
 
-        Pattern createTableNoColsPattern = Pattern.compile("(?i)^CREATE\\s+TABLE\\s+([A-Za-z0-9]+)$");
-        Matcher createTableNoColsMatcher = createTableNoColsPattern.matcher(command);
-        if(createTableNoColsMatcher.find()) {
-            String tableName = createTableNoColsMatcher.group(1);
-            return toCreateTable(tableName, "");
+    // Returns the reply, or null for queries, which write any error to out and leave their rows in session.unwrittenRows
+    private String execute(Session session, Statement statement, Writer out) throws IOException {
+        if(session.transaction != null && !Transaction.allows(statement)) {
+            return "[ERROR] Only queries, INSERT, UPDATE and DELETE can be used inside a transaction";
         }
-
-        // 4) DROP DATABASE <dbname>
-        Pattern dropDBPattern = Pattern.compile("(?i)^DROP\\s+DATABASE\\s+([A-Za-z0-9]+)$");
-        Matcher dropDBMatcher = dropDBPattern.matcher(command);
-        if(dropDBMatcher.find()) {
-            String dbName = dropDBMatcher.group(1);
-            return toDropDatabase(dbName);
+        if(statement instanceof Statement.Use) {
+            return toCreateUse(session, ((Statement.Use) statement).databaseName);
         }
-
-        Pattern dropTablePattern = Pattern.compile("(?i)^DROP\\s+TABLE\\s+([A-Za-z0-9]+)$");
-        Matcher dropTableMatcher = dropTablePattern.matcher(command);
-        if(dropTableMatcher.find()) {
-            String tableName = dropTableMatcher.group(1);
-            return toDropTable(tableName);
+        else if(statement instanceof Statement.CreateDatabase) {
+            return toCreateDatabase(((Statement.CreateDatabase) statement).databaseName);
         }
-
-        // 5) ALTER TABLE <tableName> ADD <colName> or ALTER TABLE <tableName> DROP <colName>
-        Pattern alterPattern = Pattern.compile("(?i)^ALTER\\s+TABLE\\s+([A-Za-z0-9]+)\\s+(ADD|DROP)\\s+([A-Za-z0-9]+)$");
-        Matcher alterMatcher = alterPattern.matcher(command);
-        if(alterMatcher.find()) {
-            String tableName = alterMatcher.group(1);
-            String action = alterMatcher.group(2).toUpperCase();
-            String colName = alterMatcher.group(3);
-            return toAlterTable(tableName, action, colName);
+        else if(statement instanceof Statement.CreateTable) {
+            Statement.CreateTable create = (Statement.CreateTable) statement;
+            return toCreateTable(session, create.tableName, create.columns);
+        }
+        else if(statement instanceof Statement.DropDatabase) {
+            return toDropDatabase(session, ((Statement.DropDatabase) statement).databaseName);
+        }
+        else if(statement instanceof Statement.DropTable) {
+            return toDropTable(session, ((Statement.DropTable) statement).tableName);
+        }
+        else if(statement instanceof Statement.AlterTable) {
+            Statement.AlterTable alter = (Statement.AlterTable) statement;
+            return toAlterTable(session, alter.tableName, alter.action, alter.columnName);
         }
+        else if(statement instanceof Statement.Insert) {
+            Statement.Insert insert = (Statement.Insert) statement;
+            return toInsert(session, insert.tableName, insert.rows);
+        }
+        else if(statement instanceof Statement.Load) {
+            Statement.Load load = (Statement.Load) statement;
+            return toLoad(session, load.path, load.tableName);
+        }
+        else if(statement instanceof Statement.Select) {
+            Statement.Select select = (Statement.Select) statement;
+            session.unwrittenRows = toSelect(session, select.tableName, select.columns, select.where, select.orderBy, select.descending, out);
+            return null;
+        }
+        else if(statement instanceof Statement.Update) {
+            Statement.Update update = (Statement.Update) statement;
+            return toUpdate(session, update.tableName, update.assignments, update.where);
+        }
+        else if(statement instanceof Statement.Delete) {
+            Statement.Delete delete = (Statement.Delete) statement;
+            return toDelete(session, delete.tableName, delete.where);
+        }
+        else if(statement instanceof Statement.Join) {
+            Statement.Join join = (Statement.Join) statement;
+            session.unwrittenRows = toJoin(session, join.table1, join.table2, join.column1, join.column2, out);
+            return null;
+        }
+        else if(statement instanceof Statement.CreateIndex) {
+            Statement.CreateIndex create = (Statement.CreateIndex) statement;
+            return toCreateIndex(session, create.tableName, create.columnName, create.ordered);
+        }
+        else if(statement instanceof Statement.DropIndex) {
+            Statement.DropIndex drop = (Statement.DropIndex) statement;
+            return toDropIndex(session, drop.tableName, drop.columnName);
+        }
+        else if(statement instanceof Statement.Vacuum) {
+            return toVacuum(session, ((Statement.Vacuum) statement).tableName);
+        }
+        else if(statement instanceof Statement.Checkpoint) {
+            return checkpoint(true);
+        }
+        else if(statement instanceof Statement.ShowCache) {
+            return resultCache.stats();
+        }
+        else if(statement instanceof Statement.Begin) {
+            return toBegin(session);
+        }
+        else if(statement instanceof Statement.Commit) {
+            return toCommit(session);
+        }
+        else if(statement instanceof Statement.Rollback) {
+            return toRollback(session);
+        }
+        else if(statement instanceof Statement.Prepare) {
+            return toPrepare(session, (Statement.Prepare) statement);
+        }
+        else if(statement instanceof Statement.Execute) {
+            Statement.Execute execute = (Statement.Execute) statement;
+            Statement.Prepare prepared = session.preparedStatements.get(execute.name.toLowerCase());
+            if(prepared == null) {
+                return "[ERROR] No prepared statement called " + execute.name;
+            }
+            if(execute.args.size() != prepared.parameterCount) {
+                return "[ERROR] Prepared statement " + execute.name + " expects "
+                        + prepared.parameterCount + " values but got " + execute.args.size();
+            }
+            return execute(session, prepared.body.bind(execute.args), out);
+        }
+        return "[ERROR] Command not recognized or invalid syntax";
+    }
 
-        // 6) INSERT INTO <table> VALUES(...)
-        Pattern insertPattern = Pattern.compile("(?i)^INSERT\\s+INTO\\s+([A-Za-z0-9]+)\\s+VALUES\\s*\\((.*)\\)$");
-        Matcher insertMatcher = insertPattern.matcher(command);
-        if(insertMatcher.find()) {
-            String tableName = insertMatcher.group(1);
-            String valuesRaw = insertMatcher.group(2).trim();
-            return toInsert(tableName, valuesRaw);
+    // Checks the statement against the current database once, then keeps it for EXECUTE
+    private String toPrepare(Session session, Statement.Prepare prepare) {
+        String error = checkPlan(session, prepare.body);
+        if(error != null) {
+            return error;
         }
+        session.preparedStatements.put(prepare.name.toLowerCase(), prepare);
+        return "[OK]";
+    }
 
-        // 7) SELECT <columns> FROM <table> [WHERE <condition>]
-        Pattern selectPattern = Pattern.compile("(?i)^SELECT\\s+(.*)\\s+FROM\\s+([A-Za-z0-9]+)(?:\\s+WHERE\\s+(.*))?$");
-        Matcher selectMatcher = selectPattern.matcher(command);
-        if(selectMatcher.find()) {
-            String colsPart = selectMatcher.group(1).trim();
-            String tableName = selectMatcher.group(2);
-            String wherePart = selectMatcher.group(3);
-            if(wherePart != null) {
-                wherePart = wherePart.trim();
+    // Resolves the tables and columns a statement refers to, returns an error message or null if it's fine
+    private String checkPlan(Session session, Statement statement) {
+        if(statement instanceof Statement.Prepare || statement instanceof Statement.Execute) {
+            return "[ERROR] PREPARE and EXECUTE can't be prepared";
+        }
+        if(!(statement instanceof Statement.Insert || statement instanceof Statement.Select
+                || statement instanceof Statement.Update || statement instanceof Statement.Delete
+                || statement instanceof Statement.Join)) {
+            return null;
+        }
+        if(session.currentDatabaseName == null) {
+            return "[ERROR] No database selected.";
+        }
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            return "[ERROR] No database exists";
+        }
+        if(statement instanceof Statement.Join) {
+            Statement.Join join = (Statement.Join) statement;
+            Table[] tables = lockForReading(db, join.table1, join.table2);
+            if(tables == null) {
+                return "[ERROR] One or both tables do not exist";
+            }
+            try {
+                if(!tables[0].hasColumn(join.column1) || !tables[1].hasColumn(join.column2)) {
+                    return "[ERROR] Join column not found in table(s)";
+                }
+                return null;
+            } finally {
+                unlockAfterReading(db, tables);
             }
-            return toSelect(tableName, colsPart, wherePart);
         }
 
-        // 8) UPDATE <table> SET <nameValueList> WHERE <condition>
-        Pattern updatePattern = Pattern.compile("(?i)^UPDATE\\s+([A-Za-z0-9]+)\\s+SET\\s+(.*)\\s+WHERE\\s+(.*)$");
-        Matcher updateMatcher = updatePattern.matcher(command);
-        if(updateMatcher.find()) {
-            String tableName = updateMatcher.group(1);
-            String setPart = updateMatcher.group(2).trim();
-            String wherePart = updateMatcher.group(3).trim();
-            return toUpdate(tableName, setPart, wherePart);
+        List<String> columns = new ArrayList<>();
+        Condition where = null;
+        String tableName;
+        if(statement instanceof Statement.Insert) {
+            tableName = ((Statement.Insert) statement).tableName;
         }
-
-        // 9) DELETE FROM <table> WHERE <condition>
-        Pattern deletePattern = Pattern.compile("(?i)^DELETE\\s+FROM\\s+([A-Za-z0-9]+)\\s+WHERE\\s+(.*)$");
-        Matcher deleteMatcher = deletePattern.matcher(command);
-        if(deleteMatcher.find()) {
-            String tableName = deleteMatcher.group(1);
-            String wherePart = deleteMatcher.group(2).trim();
-            return toDelete(tableName, wherePart);
-        }
-
-        // 10) JOIN <table1> AND <table2> ON <col1> AND <col2>
-        Pattern joinPattern = Pattern.compile("(?i)^JOIN\\s+([A-Za-z0-9]+)\\s+AND\\s+([A-Za-z0-9]+)\\s+ON\\s+([A-Za-z0-9]+)\\s+AND\\s+([A-Za-z0-9]+)$");
-        Matcher joinMatcher = joinPattern.matcher(command);
-        if(joinMatcher.find()) {
-            String table1 = joinMatcher.group(1);
-            String table2 = joinMatcher.group(2);
-            String col1 = joinMatcher.group(3);
-            String col2 = joinMatcher.group(4);
-            return toJoin(table1, table2, col1, col2);
+        else if(statement instanceof Statement.Select) {
+            Statement.Select select = (Statement.Select) statement;
+            tableName = select.tableName;
+            if(select.columns != null) {
+                columns.addAll(select.columns);
+            }
+            if(select.orderBy != null) {
+                columns.add(select.orderBy);
+            }
+            where = select.where;
+        }
+        else if(statement instanceof Statement.Update) {
+            Statement.Update update = (Statement.Update) statement;
+            tableName = update.tableName;
+            columns.addAll(update.assignments.keySet());
+            where = update.where;
+        }
+        else {
+            Statement.Delete delete = (Statement.Delete) statement;
+            tableName = delete.tableName;
+            where = delete.where;
         }
 
-        return "[ERROR] Command not recognized or invalid syntax";
+        Table table = db.lockTable(tableName, false);
+        if(table == null) {
+            return "[ERROR] Table not found: " + tableName;
+        }
+        try {
+            if(statement instanceof Statement.Insert) {
+                int expected = table.getColumns().size() - 1;
+                for(List<Literal> values : ((Statement.Insert) statement).rows) {
+                    if(values.size() != expected) {
+                        return "[ERROR] Inserted values count mismatch. Expect " + expected;
+                    }
+                }
+            }
+            if(where != null) {
+                where.collectColumns(columns);
+            }
+            for(String col : columns) {
+                if(!table.hasColumn(col)) {
+                    return "[ERROR] Column not found: " + col;
+                }
+            }
+            return null;
+        } finally {
+            db.unlockTable(table, false);
+        }
     }
 
-    private String toCreateUse(String dbName) {
+    private String toCreateUse(Session session, String dbName) {
         String dbLower = dbName.toLowerCase();
-        if(!databases.containsKey(dbLower)) {
+        Database db = databases.get(dbLower);
+        if(db == null) {
             return "[ERROR] Database does not exist: " + dbName;
         }
-        currentDatabaseName = dbLower;
+        session.currentDatabaseName = dbLower;
+        if(tableLoading == TableLoading.LAZY) {
+            // Its tables are likely to be queried next
+            tableLoader.execute(db::loadAll);
+        }
         return "[OK]";
     }
 
@@ -229,333 +528,879 @@ public class DBServer {
             return "[ERROR] Failed to create database folder for: " + dbName;
         }
         Database dbObj = new Database(dbLower);
+        dbObj.openChangeLog(storageFolderPath);
         databases.put(dbLower, dbObj);
         return "[OK]";
     }
 
-    private String toCreateTable(String tableName, String colsRaw) {
-        if(currentDatabaseName == null) {
+    private String toCreateTable(Session session, String tableName, List<String> userDefinedCols) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
 
-        String tblLower = tableName.toLowerCase();
-        if(db.tables.containsKey(tblLower)) {
-            return "[ERROR] Table already exists: " + tableName;
-        }
-
-        List<String> userDefinedCols = new ArrayList<>();
-        if(!colsRaw.isEmpty()) {
-            String[] arr = colsRaw.split(",");
-            for(String c : arr) {
-                userDefinedCols.add(c.trim());
+        Table newTable = new Table(tableName, userDefinedCols);
+        // The table is locked before it's added, so nobody can change it before its creation is logged
+        db.logLock.readLock().lock();
+        newTable.lock.writeLock().lock();
+        try {
+            if(db.dropped) {
+                return "[ERROR] No database exists";
+            }
+            if(!db.addTable(newTable)) {
+                return "[ERROR] Table already exists: " + tableName;
+            }
+            try {
+                log(session, db, ChangeLog.createTable(newTable));
+            } catch(RuntimeException e) {
+                db.removeTable(tableName);
+                throw e;
             }
+            return "[OK]";
+        } finally {
+            db.unlockTable(newTable, true);
         }
-        Table newTable = new Table(tableName, userDefinedCols);
-        db.tables.put(tblLower, newTable);
-
-        db.saveTableToFile(newTable, storageFolderPath);
-        return "[OK]";
     }
 
-    private String toDropDatabase(String dbName) {
+    private String toDropDatabase(Session session, String dbName) {
         String dbLower = dbName.toLowerCase();
-        if(!databases.containsKey(dbLower)) {
+        Database db = databases.remove(dbLower);
+        if(db == null) {
             return "[ERROR] Database not found: " + dbName;
         }
-        databases.remove(dbLower);
+        // Waits for statements still changing the database
+        db.close();
+        for(Table table : db.tables.values()) {
+            resultCache.invalidate(table);
+        }
 
         File dbFolder = new File(storageFolderPath, dbLower);
         if(dbFolder.exists()) {
             deleteDirectory(dbFolder);
         }
 
-        if(currentDatabaseName != null && currentDatabaseName.equals(dbLower)) {
-            currentDatabaseName = null;
+        if(session.currentDatabaseName != null && session.currentDatabaseName.equals(dbLower)) {
+            session.currentDatabaseName = null;
         }
         return "[OK]";
     }
 
 
-    private String toDropTable(String tableName) {
-        if(currentDatabaseName == null) {
+    private String toDropTable(Session session, String tableName) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
         String tblLower = tableName.toLowerCase();
-        if(!db.tables.containsKey(tblLower)) {
+        Table table = db.lockTable(tblLower, true);
+        if(table == null) {
             return "[ERROR] Table does not exist: " + tableName;
         }
-        db.tables.remove(tblLower);
-        File tableFile = new File(new File(storageFolderPath, currentDatabaseName), tblLower + ".tab");
-        if(tableFile.exists()) {
-            boolean deleted = tableFile.delete();
-            if(!deleted) {
-                return "[ERROR] Failed to delete table file: " + tableName;
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
             }
+            log(session, db, ChangeLog.dropTable(tableName));
+            db.removeTable(tblLower);
+            table.dropped = true;
+            resultCache.invalidate(table);
+            File dbFolder = new File(storageFolderPath, db.name);
+            for(File tableFile : new File[] { new File(dbFolder, tblLower + TableFile.EXTENSION),
+                    new File(dbFolder, tblLower + TableFile.LEGACY_EXTENSION), new File(dbFolder, tblLower + ".idx") }) {
+                if(tableFile.exists()) {
+                    boolean deleted = tableFile.delete();
+                    if(!deleted) {
+                        return "[ERROR] Failed to delete table file: " + tableName;
+                    }
+                }
+            }
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
-        return "[OK]";
     }
 
-    private String toAlterTable(String tableName, String action, String colName) {
-        if(currentDatabaseName == null) {
+    private String toAlterTable(Session session, String tableName, String action, String colName) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table table = db.getTable(tableName);
+        Table table = db.lockTable(tableName, true);
         if(table == null) {
             return "[ERROR] Table not found: " + tableName;
         }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            String colNameLower = colName.toLowerCase();
+            if("ADD".equals(action)) {
 
-        String colNameLower = colName.toLowerCase();
-        if("ADD".equals(action)) {
+                if(table.hasColumn(colNameLower)) {
+                    return "[ERROR] Column already exists: " + colName;
+                }
 
-            if(table.hasColumn(colNameLower)) {
-                return "[ERROR] Column already exists: " + colName;
+                log(session, db, ChangeLog.addColumn(table.name, colName));
+                table.addColumn(colName);
+                resultCache.invalidate(table);
+            }
+            else if("DROP".equals(action)) {
+                if(colNameLower.equals("id")) {
+                    return "[ERROR] Cannot drop 'id' column.";
+                }
+                if(!table.hasColumn(colNameLower)) {
+                    return "[ERROR] Column not found: " + colName;
+                }
+                log(session, db, ChangeLog.dropColumn(table.name, colName));
+                table.dropColumn(colName);
+                resultCache.invalidate(table);
+            }
+            else {
+                return "[ERROR] Invalid ALTER action: " + action;
             }
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
+        }
+    }
 
-            table.addColumn(colName);
+    private String toCreateIndex(Session session, String tableName, String colName, boolean ordered) {
+        if(session.currentDatabaseName == null) {
+            return "[ERROR] No database selected.";
         }
-        else if("DROP".equals(action)) {
-            if(colNameLower.equals("id")) {
-                return "[ERROR] Cannot drop 'id' column.";
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            return "[ERROR] No database exists";
+        }
+        Table table = db.lockTable(tableName, true);
+        if(table == null) {
+            return "[ERROR] Table not found: " + tableName;
+        }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
             }
-            if(!table.hasColumn(colNameLower)) {
+            if(!table.hasColumn(colName)) {
                 return "[ERROR] Column not found: " + colName;
             }
-            table.dropColumn(colName);
-        }
-        else {
-            return "[ERROR] Invalid ALTER action: " + action;
+            if(table.hasIndex(colName)) {
+                return "[ERROR] Index already exists on " + tableName + " (" + colName + ")";
+            }
+            log(session, db, ChangeLog.createIndex(table.name, colName, ordered));
+            table.createIndex(colName, ordered);
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
-
-        db.saveTableToFile(table, storageFolderPath);
-        return "[OK]";
     }
 
-    private String toInsert(String tableName, String valuesRaw) {
-        if(currentDatabaseName == null) {
+    private String toDropIndex(Session session, String tableName, String colName) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table table = db.getTable(tableName);
+        Table table = db.lockTable(tableName, true);
         if(table == null) {
             return "[ERROR] Table not found: " + tableName;
         }
-        List<String> insertedValues = parseValueList(valuesRaw);
-        int expected = table.getColumns().size() - 1;
-        if(insertedValues.size() != expected) {
-            return "[ERROR] Inserted values count mismatch. Expect " + expected;
-        }
-
-        Row newRow = new Row(table.generateNextId());
-        for(int i=1; i<table.getColumns().size(); i++){
-            String colName = table.getColumns().get(i);
-            newRow.values.put(colName.toLowerCase(), insertedValues.get(i-1));
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            if(!table.hasIndex(colName)) {
+                return "[ERROR] No index on " + tableName + " (" + colName + ")";
+            }
+            log(session, db, ChangeLog.dropIndex(table.name, colName));
+            table.dropIndex(colName);
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
-        table.rows.add(newRow);
-
-        db.saveTableToFile(table, storageFolderPath);
-        return "[OK]";
     }
 
-    private String toSelect(String tableName, String colPart, String wherePart) {
-        if(currentDatabaseName == null) {
+    // Only moves rows to other slots, the rows themselves don't change so nothing is logged
+    private String toVacuum(Session session, String tableName) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table table = db.getTable(tableName);
+        Table table = db.lockTable(tableName, true);
         if(table == null) {
             return "[ERROR] Table not found: " + tableName;
         }
-
-        List<String> selectedCols;
-        if(colPart.trim().equals("*")) {
-            selectedCols = new ArrayList<>(table.getColumns());
-        }
-        else {
-            selectedCols = parseAttributeList(colPart);
-            for(String col : selectedCols) {
-                if(!table.hasColumn(col.toLowerCase())) {
-                    return "[ERROR] Column not found: " + col;
-                }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
             }
+            table.vacuum();
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
+    }
 
-        List<Row> matchedRows = table.filterRows(wherePart);
-        if(matchedRows.isEmpty()) {
-            return "[ERROR] No matching rows found.";
+    private String toInsert(Session session, String tableName, List<List<Literal>> insertedRows) {
+        if(session.currentDatabaseName == null) {
+            return "[ERROR] No database selected.";
         }
-
-        StringBuilder sb = new StringBuilder("[OK]\n");
-
-        for(String col : selectedCols) {
-            sb.append(col).append("\t");
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            return "[ERROR] No database exists";
         }
-        sb.append("\n");
-
-        for(Row r : matchedRows) {
-            for(String col : selectedCols) {
-                String colLower = col.toLowerCase();
-                if(colLower.equals("id")) {
-                    sb.append(r.id).append("\t");
-                } else {
-                    String val = r.values.getOrDefault(colLower, "");
-                    sb.append(val).append("\t");
+        Table table = db.lockTable(tableName, true);
+        if(table == null) {
+            return "[ERROR] Table not found: " + tableName;
+        }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            int expected = table.getColumns().size() - 1;
+            List<List<String>> rows = new ArrayList<>();
+            for(List<Literal> insertedValues : insertedRows) {
+                if(insertedValues.size() != expected) {
+                    return "[ERROR] Inserted values count mismatch. Expect " + expected;
+                }
+                List<String> values = new ArrayList<>();
+                for(Literal literal : insertedValues) {
+                    values.add(literal.storedValue());
                 }
+                rows.add(values);
             }
-            sb.append("\n");
+            // The change is logged before it is applied, so a failed log write leaves the table untouched.
+            // All the rows go into one record.
+            int firstId = table.generateNextIds(rows.size());
+            log(session, db, ChangeLog.insertRows(table.name, firstId, rows));
+            table.insertRows(firstId, rows);
+            resultCache.invalidate(table);
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
-        return sb.toString().trim();
     }
 
-    private String toUpdate(String tableName, String setPart, String wherePart) {
-        if(currentDatabaseName == null) {
+    // Adds the rows of a CSV file, or a TSV file going by its name, to a table. A first line naming
+    // the table's columns is skipped. Rows are added in batches as the file is read and logged once
+    // it has all been read, so a bad line puts the table back as it was and nothing reaches the log.
+    private String toLoad(Session session, String path, String tableName) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table table = db.getTable(tableName);
+        File file = new File(path);
+        if(!file.isFile() || !file.canRead()) {
+            return "[ERROR] Cannot read file: " + path;
+        }
+        Table table = db.lockTable(tableName, true);
         if(table == null) {
             return "[ERROR] Table not found: " + tableName;
         }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            int expected = table.getColumns().size() - 1;
+            Table before = table.snapshot();
+            int first = table.rowCount;
+            boolean loaded = false;
+            try(DelimitedReader reader = DelimitedReader.open(file)) {
+                List<List<String>> batch = new ArrayList<>();
+                List<String> values = reader.next();
+                if(values != null && namesColumns(table, values)) {
+                    values = reader.next();
+                }
+                for(; values != null; values = reader.next()) {
+                    if(values.size() != expected) {
+                        return "[ERROR] Line " + reader.line + " of " + path + " has " + values.size()
+                                + " values, expected " + expected;
+                    }
+                    batch.add(values);
+                    if(batch.size() == LOAD_BATCH) {
+                        table.insertRows(table.generateNextIds(batch.size()), batch);
+                        batch = new ArrayList<>();
+                    }
+                }
+                if(!batch.isEmpty()) {
+                    table.insertRows(table.generateNextIds(batch.size()), batch);
+                }
+                // Replay only keeps the rows once it has seen the end marker, so a load that fails
+                // or is cut short by a crash leaves nothing behind in the log either
+                for(int from=first; from<table.rowCount; from+=LOAD_BATCH) {
+                    log(session, db, ChangeLog.loadRows(table, from, Math.min(from + LOAD_BATCH, table.rowCount)));
+                }
+                log(session, db, ChangeLog.loadEnd(table.name));
+                loaded = true;
+                resultCache.invalidate(table);
+                return "[OK]";
+            } catch(IOException e) {
+                return "[ERROR] Failed to load " + path + ": " + e.getMessage();
+            } finally {
+                if(!loaded) {
+                    table.restore(before);
+                }
+            }
+        } finally {
+            db.unlockTable(table, true);
+        }
+    }
+
+    // Whether a line of a loaded file is a header naming the table's columns
+    private static boolean namesColumns(Table table, List<String> values) {
+        List<String> columns = table.getColumns();
+        if(values.size() != columns.size() - 1) {
+            return false;
+        }
+        for(int i=0; i<values.size(); i++) {
+            if(!values.get(i).equalsIgnoreCase(columns.get(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        Map<String, String> setMap = parseNameValueList(setPart);
+    // Returns the rows to write, or null once the reply (an error or a cached result) is written to out
+    private RowStream toSelect(Session session, String tableName, List<String> colNames, Condition where,
+                               String orderBy, boolean descending, Writer out) throws IOException {
+        if(session.currentDatabaseName == null) {
+            out.write("[ERROR] No database selected.");
+            return null;
+        }
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            out.write("[ERROR] No database exists");
+            return null;
+        }
+        Table table = db.lockTable(tableName, false);
+        if(table == null) {
+            out.write("[ERROR] Table not found: " + tableName);
+            return null;
+        }
+        List<String> selectedCols;
+        int[] ordinals;
+        SelectRows rows;
+        try {
+            // Only the table as everyone sees it is cached, not one with a transaction's uncommitted changes
+            ResultCache.Capture capture = null;
+            String cacheKey = null;
+            if(resultCache.isEnabled() && table.owner == null) {
+                cacheKey = ResultCache.key(db.name, tableName, colNames, where, orderBy, descending);
+                String cached = resultCache.get(cacheKey, table);
+                if(cached != null) {
+                    out.write(cached);
+                    return null;
+                }
+                capture = resultCache.capture(out);
+            }
+            if(colNames == null) {
+                selectedCols = new ArrayList<>(table.getColumns());
+            }
+            else {
+                selectedCols = colNames;
+                for(String col : selectedCols) {
+                    if(!table.hasColumn(col.toLowerCase())) {
+                        out.write("[ERROR] Column not found: " + col);
+                        return null;
+                    }
+                }
+            }
+            ordinals = new int[selectedCols.size()];
+            for(int i=0; i<ordinals.length; i++) {
+                ordinals[i] = table.ordinal(selectedCols.get(i));
+            }
+            if(orderBy != null && !table.hasColumn(orderBy)) {
+                out.write("[ERROR] Column not found: " + orderBy);
+                return null;
+            }
+            Table visible = table.visibleTo(session);
+            Writer target = capture != null ? capture : out;
+            if(visible != table) {
+                // Another session's transaction has changed the table, the rows from before it are read
+                rows = new SelectRows(visible, selectedCols, ordinals, where, orderBy, descending, target);
+            } else if(!table.wantsSnapshot(where)) {
+                // A small table or an index lookup: the rows are found and the first batch formatted
+                // under the lock, anything after that is read from a snapshot once it's released
+                rows = new SelectRows(table, selectedCols, ordinals, where, orderBy, descending, target);
+                rows.findSlots();
+                if(rows.prepare()) {
+                    rows.moveTo(table.snapshot());
+                }
+            } else {
+                // A scan of the whole table reads a snapshot after the lock is released, so changes
+                // to the table don't wait for it
+                rows = new SelectRows(table.snapshot(), selectedCols, ordinals, where, orderBy, descending, target);
+            }
+            if(capture != null) {
+                rows.cacheAs(cacheKey, table, table.version, capture);
+            }
+        } finally {
+            db.unlockTable(table, false);
+        }
+        return rows;
+    }
 
-        for(String colKey : setMap.keySet()) {
-            if(colKey.equalsIgnoreCase("id")) {
-                return "[ERROR] Cannot update 'id' column.";
+    // The rows of a SELECT reply, read from view: the table or a snapshot of it. The header goes out
+    // with the first row. Large results are formatted in parallel windows instead of row by row.
+    private class SelectRows extends RowStream {
+        private Table view;
+        private final List<String> selectedCols;
+        private final int[] ordinals;
+        private final Condition where;
+        private final String orderBy;
+        private final boolean descending;
+        private final boolean parallel;
+        private PrimitiveIterator.OfInt slots = null;
+        // For a parallel result: every matching slot, and where the next window starts
+        private int[] matched = null;
+        private int next = 0;
+        private boolean headerWritten = false;
+        // Where the reply is kept once it's complete, if it's to be cached
+        private String cacheKey = null;
+        private Table table;
+        private long version;
+        private ResultCache.Capture capture;
+
+        SelectRows(Table view, List<String> selectedCols, int[] ordinals, Condition where, String orderBy,
+                   boolean descending, Writer out) {
+            super(out);
+            this.view = view;
+            this.selectedCols = selectedCols;
+            this.ordinals = ordinals;
+            this.where = where;
+            this.orderBy = orderBy;
+            this.descending = descending;
+            this.parallel = ParallelScan.worthwhile(view.rowCount);
+        }
+
+        // Finds every matching slot now, while the table is locked, so that the rows can still be
+        // read from a snapshot (which has the same slots) after the lock is released
+        void findSlots() {
+            slots = Arrays.stream(toArray(view.scan(where, orderBy, descending))).iterator();
+        }
+
+        void moveTo(Table snapshot) {
+            view = snapshot;
+        }
+
+        // Keeps the reply in the result cache once it's complete, capture being the writer it goes through
+        void cacheAs(String cacheKey, Table table, long version, ResultCache.Capture capture) {
+            this.cacheKey = cacheKey;
+            this.table = table;
+            this.version = version;
+            this.capture = capture;
+        }
+
+        @Override
+        boolean formatNext(StringBuilder text) {
+            if(slots == null) {
+                slots = view.scan(where, orderBy, descending);
             }
-            if(!table.hasColumn(colKey)) {
-                return "[ERROR] Column not found: " + colKey;
+            if(parallel) {
+                if(matched == null) {
+                    matched = toArray(slots);
+                }
+                if(matched.length == 0) {
+                    text.append("[ERROR] No matching rows found.");
+                    return false;
+                }
+                if(!headerWritten) {
+                    header(text);
+                }
+                next = ParallelScan.format(matched, next, this::row, text);
+                return next < matched.length;
+            }
+            for(int i=0; i<BATCH_ROWS && slots.hasNext(); i++) {
+                int slot = slots.nextInt();
+                if(!headerWritten) {
+                    header(text);
+                }
+                row(slot, text);
             }
+            if(slots.hasNext()) {
+                return true;
+            }
+            if(!headerWritten) {
+                text.append("[ERROR] No matching rows found.");
+            }
+            return false;
         }
 
-        List<Row> matchedRows = table.filterRows(wherePart);
-        if(matchedRows.isEmpty()) {
-            return "[ERROR] No matching rows found for update.";
+        private void header(StringBuilder text) {
+            text.append("[OK]\n");
+            for(String col : selectedCols) {
+                text.append(col).append('\t');
+            }
+            text.append('\n');
+            headerWritten = true;
         }
 
-        for(Row row : matchedRows) {
-            for(Map.Entry<String,String> e : setMap.entrySet()) {
-                row.values.put(e.getKey().toLowerCase(), e.getValue());
+        private void row(int slot, StringBuilder text) {
+            for(int ordinal : ordinals) {
+                text.append(view.cellValue(slot, ordinal)).append('\t');
             }
+            text.append('\n');
         }
 
-        db.saveTableToFile(table, storageFolderPath);
-        return "[OK]";
+        @Override
+        void finished() {
+            String reply = capture == null ? null : capture.text();
+            if(reply != null) {
+                resultCache.put(cacheKey, table, version, reply);
+            }
+        }
     }
 
-    private String toDelete(String tableName, String wherePart) {
-        if(currentDatabaseName == null) {
+    private static int[] toArray(PrimitiveIterator.OfInt slots) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(slots, Spliterator.ORDERED), false).toArray();
+    }
+
+    private String toUpdate(Session session, String tableName, Map<String, Literal> setMap, Condition where) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table table = db.getTable(tableName);
+        Table table = db.lockTable(tableName, true);
         if(table == null) {
             return "[ERROR] Table not found: " + tableName;
         }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            for(String colKey : setMap.keySet()) {
+                if(colKey.equalsIgnoreCase("id")) {
+                    return "[ERROR] Cannot update 'id' column.";
+                }
+                if(!table.hasColumn(colKey)) {
+                    return "[ERROR] Column not found: " + colKey;
+                }
+            }
 
-        List<Row> matchedRows = table.filterRows(wherePart);
-        if(matchedRows.isEmpty()) {
-            return "[ERROR] No matching rows found for delete.";
-        }
-
-        table.rows.removeAll(matchedRows);
+            int[] matchedSlots = table.filterRows(where);
+            if(matchedSlots.length == 0) {
+                return "[ERROR] No matching rows found for update.";
+            }
 
-        db.saveTableToFile(table, storageFolderPath);
-        return "[OK]";
+            Map<String, String> newValues = new LinkedHashMap<>();
+            for(Map.Entry<String, Literal> e : setMap.entrySet()) {
+                newValues.put(e.getKey().toLowerCase(), e.getValue().storedValue());
+            }
+            log(session, db, ChangeLog.update(table, newValues, matchedSlots));
+            table.updateRows(matchedSlots, newValues);
+            resultCache.invalidate(table);
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
+        }
     }
 
-    private String toJoin(String table1, String table2, String col1, String col2) {
-        if(currentDatabaseName == null) {
+    private String toDelete(Session session, String tableName, Condition where) {
+        if(session.currentDatabaseName == null) {
             return "[ERROR] No database selected.";
         }
-        Database db = databases.get(currentDatabaseName);
+        Database db = databases.get(session.currentDatabaseName);
         if(db == null) {
             return "[ERROR] No database exists";
         }
-        Table t1 = db.getTable(table1);
-        Table t2 = db.getTable(table2);
-        if(t1 == null || t2 == null) {
-            return "[ERROR] One or both tables do not exist";
+        Table table = db.lockTable(tableName, true);
+        if(table == null) {
+            return "[ERROR] Table not found: " + tableName;
         }
+        try {
+            String busy = claim(session, db, table);
+            if(busy != null) {
+                return busy;
+            }
+            int[] matchedSlots = table.filterRows(where);
+            if(matchedSlots.length == 0) {
+                return "[ERROR] No matching rows found for delete.";
+            }
 
-        if(!t1.hasColumn(col1.toLowerCase()) || !t2.hasColumn(col2.toLowerCase())) {
-            return "[ERROR] Join column not found in table(s)";
+            log(session, db, ChangeLog.delete(table, matchedSlots));
+            table.deleteRows(matchedSlots);
+            resultCache.invalidate(table);
+            return "[OK]";
+        } finally {
+            db.unlockTable(table, true);
         }
+    }
 
-        List<Row> resultRows = new ArrayList<>();
-        for(Row r1 : t1.rows) {
-            String v1 = r1.values.getOrDefault(col1.toLowerCase(), "");
-            for(Row r2 : t2.rows) {
-                String v2 = r2.values.getOrDefault(col2.toLowerCase(), "");
-                if(v1.equals(v2)) {
+    // Returns the rows to write, or null once an error has been written to out
+    private RowStream toJoin(Session session, String table1, String table2, String col1, String col2, Writer out) throws IOException {
+        if(session.currentDatabaseName == null) {
+            out.write("[ERROR] No database selected.");
+            return null;
+        }
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            out.write("[ERROR] No database exists");
+            return null;
+        }
+        Table[] tables = lockForReading(db, table1, table2);
+        if(tables == null) {
+            out.write("[ERROR] One or both tables do not exist");
+            return null;
+        }
+        Table left;
+        Table right;
+        try {
+            Table first = tables[0].visibleTo(session);
+            Table second = tables[1].visibleTo(session);
+            if(!first.hasColumn(col1.toLowerCase()) || !second.hasColumn(col2.toLowerCase())) {
+                out.write("[ERROR] Join column not found in table(s)");
+                return null;
+            }
+            if(first.rowCount < Table.SNAPSHOT_ROWS && second.rowCount < Table.SNAPSHOT_ROWS) {
+                // Small tables are joined under the locks as far as the first batch, the rest of the
+                // join runs on snapshots of them after the locks are released
+                JoinRows rows = new JoinRows(first, col1, second, col2, out);
+                if(rows.prepare()) {
+                    Table leftCopy = first == tables[0] ? first.snapshot() : first;
+                    rows.moveTo(leftCopy, tables[1] == tables[0] ? leftCopy : second == tables[1] ? second.snapshot() : second);
+                }
+                return rows;
+            }
+            // A join of a big table runs on snapshots once the locks are released, like a long SELECT
+            left = first == tables[0] ? first.snapshot() : first;
+            right = tables[1] == tables[0] ? left : second == tables[1] ? second.snapshot() : second;
+        } finally {
+            unlockAfterReading(db, tables);
+        }
+        return new JoinRows(left, col1, right, col2, out);
+    }
 
-                    Row joined = new Row(generateTempId());
+    // The rows of a JOIN reply, each under a newly generated id
+    private class JoinRows extends RowStream {
+        private Table t1;
+        private Table t2;
+        private HashJoin join;
+        private boolean headerWritten = false;
+
+        JoinRows(Table t1, String col1, Table t2, String col2, Writer out) {
+            super(out);
+            this.t1 = t1;
+            this.t2 = t2;
+            this.join = new HashJoin(t1, col1, t2, col2);
+        }
+
+        // Carries on from snapshots of the two tables, which have the same slots
+        void moveTo(Table leftCopy, Table rightCopy) {
+            join = join.continueOn(leftCopy, rightCopy);
+            t1 = leftCopy;
+            t2 = rightCopy;
+        }
+
+        @Override
+        boolean formatNext(StringBuilder text) {
+            if(!headerWritten) {
+                text.append("[OK]\nid\t");
+                for(int i=1; i<t1.getColumns().size(); i++){
+                    text.append(t1.name).append('.').append(t1.getColumns().get(i)).append('\t');
+                }
+                for(int i=1; i<t2.getColumns().size(); i++){
+                    text.append(t2.name).append('.').append(t2.getColumns().get(i)).append('\t');
+                }
+                text.append('\n');
+                headerWritten = true;
+            }
+            for(int i=0; i<BATCH_ROWS; i++) {
+                if(!join.next()) {
+                    return false;
+                }
+                text.append(generateTempId()).append('\t');
+                for(Column column : t1.cells){
+                    text.append(column.get(join.leftSlot)).append('\t');
+                }
+                for(Column column : t2.cells){
+                    text.append(column.get(join.rightSlot)).append('\t');
+                }
+                text.append('\n');
+            }
+            return true;
+        }
+    }
 
-                    for(int i=1; i<t1.getColumns().size(); i++){
-                        String cName = t1.getColumns().get(i);
-                        String val = r1.values.getOrDefault(cName.toLowerCase(), "");
-                        joined.values.put(t1.name.toLowerCase()+"."+cName.toLowerCase(), val);
-                    }
+    // Logs a change before it's made. Inside a transaction the record is held back until COMMIT.
+    private static void log(Session session, Database db, ChangeLog.Record record) {
+        if(session.transaction != null) {
+            session.transaction.records.add(record);
+            return;
+        }
+        session.mustCommit(db.changeLog, db.changeLog.append(record));
+    }
 
-                    for(int i=1; i<t2.getColumns().size(); i++){
-                        String cName = t2.getColumns().get(i);
-                        String val = r2.values.getOrDefault(cName.toLowerCase(), "");
-                        joined.values.put(t2.name.toLowerCase()+"."+cName.toLowerCase(), val);
-                    }
-                    resultRows.add(joined);
-                }
+    // Checks that a statement may change a table it has locked for writing, returns an error if another
+    // session's transaction has changed it and not committed yet. Inside a transaction the table is claimed.
+    private static String claim(Session session, Database db, Table table) {
+        Transaction transaction = session.transaction;
+        if(table.owner != null && table.owner != transaction) {
+            return "[ERROR] Table " + table.name + " has uncommitted changes from another transaction";
+        }
+        if(transaction != null) {
+            if(transaction.db != db) {
+                return "[ERROR] The database was dropped during the transaction";
             }
+            transaction.claim(table);
+        }
+        return null;
+    }
+
+    // Locks two tables of a join for reading, in name order so that two joins can't each hold the
+    // table the other is waiting for. Returns null, holding no locks, if either table doesn't exist.
+    private static Table[] lockForReading(Database db, String table1, String table2) {
+        if(table1.equalsIgnoreCase(table2)) {
+            Table table = db.lockTable(table1, false);
+            return table == null ? null : new Table[] { table, table };
+        }
+        boolean swap = table1.compareToIgnoreCase(table2) > 0;
+        Table first = db.lockTable(swap ? table2 : table1, false);
+        if(first == null) {
+            return null;
+        }
+        Table second = db.lockTable(swap ? table1 : table2, false);
+        if(second == null) {
+            db.unlockTable(first, false);
+            return null;
+        }
+        return swap ? new Table[] { second, first } : new Table[] { first, second };
+    }
+
+    private static void unlockAfterReading(Database db, Table[] tables) {
+        db.unlockTable(tables[0], false);
+        if(tables[1] != tables[0]) {
+            db.unlockTable(tables[1], false);
+        }
+    }
+
+    private String toBegin(Session session) {
+        if(session.transaction != null) {
+            return "[ERROR] A transaction is already in progress";
+        }
+        if(session.currentDatabaseName == null) {
+            return "[ERROR] No database selected.";
+        }
+        Database db = databases.get(session.currentDatabaseName);
+        if(db == null) {
+            return "[ERROR] No database exists";
         }
+        session.transaction = new Transaction(db);
+        return "[OK]";
+    }
 
-        List<String> joinedCols = new ArrayList<>();
-        joinedCols.add("id");
+    // Logs the transaction's changes as one record, so the reply waits for a single flush, and lets
+    // other sessions see them
+    private String toCommit(Session session) {
+        Transaction transaction = session.transaction;
+        if(transaction == null) {
+            return "[ERROR] No transaction in progress";
+        }
+        session.transaction = null;
+        Database db = transaction.db;
+        // Locked in name order like the tables of a join, so a join sees all of the changes or none
+        List<Table> tables = new ArrayList<>(transaction.tables);
+        tables.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+        db.logLock.readLock().lock();
+        for(Table table : tables) {
+            table.lock.writeLock().lock();
+        }
+        try {
+            if(db.dropped) {
+                return "[ERROR] The database was dropped during the transaction";
+            }
+            if(!transaction.records.isEmpty()) {
+                session.mustCommit(db.changeLog, db.changeLog.append(ChangeLog.transaction(transaction.records)));
+            }
+            for(Table table : tables) {
+                table.owner = null;
+                table.committed = null;
+            }
+            return "[OK]";
+        } catch(RuntimeException e) {
+            // The changes couldn't be logged, so they are undone
+            for(Table table : tables) {
+                table.rollback();
+            }
+            throw e;
+        } finally {
+            for(Table table : tables) {
+                table.lock.writeLock().unlock();
+            }
+            db.logLock.readLock().unlock();
+        }
+    }
 
-        for(int i=1; i<t1.getColumns().size(); i++){
-            joinedCols.add(t1.name+"."+t1.getColumns().get(i));
+    private String toRollback(Session session) {
+        Transaction transaction = session.transaction;
+        if(transaction == null) {
+            return "[ERROR] No transaction in progress";
         }
+        session.transaction = null;
+        rollback(transaction);
+        return "[OK]";
+    }
 
-        for(int i=1; i<t2.getColumns().size(); i++){
-            joinedCols.add(t2.name+"."+t2.getColumns().get(i));
+    private static void rollback(Transaction transaction) {
+        for(Table table : transaction.tables) {
+            table.lock.writeLock().lock();
+            try {
+                table.rollback();
+            } finally {
+                table.lock.writeLock().unlock();
+            }
         }
+    }
 
-        StringBuilder sb = new StringBuilder("[OK]\n");
-        for(String c : joinedCols) {
-            sb.append(c).append("\t");
+    // Called when a client goes away, a transaction it left open is rolled back
+    void endSession(Session session) {
+        Transaction transaction = session.transaction;
+        if(transaction != null) {
+            session.transaction = null;
+            rollback(transaction);
         }
-        sb.append("\n");
-        for(Row r : resultRows) {
-            sb.append(r.id).append("\t");
-            for(int i=1; i<joinedCols.size(); i++){
-                String colNameFull = joinedCols.get(i).toLowerCase();
-                String val = r.values.getOrDefault(colNameFull, "");
-                sb.append(val).append("\t");
+    }
+
+    // Writes out the changed tables of every database, or only of those the checkpointer says are due,
+    // and cuts back their change logs. Changes to a database only wait while its tables are snapshotted.
+    private String checkpoint(boolean all) {
+        List<String> failed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for(Database db : databases.values()) {
+            if((all || checkpointer.isDue(db, now)) && !db.checkpoint(storageFolderPath)) {
+                failed.add(db.name);
             }
-            sb.append("\n");
         }
-        return sb.toString().trim();
+        if(!failed.isEmpty()) {
+            return "[ERROR] Failed to checkpoint database: " + String.join(", ", failed);
+        }
+        return "[OK]";
     }
 
     private void importAllDatabases() {
@@ -569,60 +1414,24 @@ public class DBServer {
                 File[] tableFiles = folder.listFiles();
                 if(tableFiles != null) {
                     for(File tf : tableFiles) {
-                        if(tf.isFile() && tf.getName().endsWith(".tab")) {
-                            dbObj.loadTableFromFile(tf);
+                        if(tf.isFile() && (tf.getName().endsWith(TableFile.EXTENSION) || tf.getName().endsWith(TableFile.LEGACY_EXTENSION))) {
+                            dbObj.registerTable(tf);
                         }
                     }
                 }
+                // The table files are a snapshot, anything changed since then is in the change log
+                dbObj.openChangeLog(storageFolderPath);
+                dbObj.recover(storageFolderPath);
+                if(tableLoading == TableLoading.EAGER) {
+                    dbObj.loadAll();
+                } else if(tableLoading == TableLoading.BACKGROUND) {
+                    tableLoader.execute(dbObj::loadAll);
+                }
                 databases.put(dbNameLower, dbObj);
             }
         }
     }
 
-    private List<String> parseValueList(String raw) {
-        List<String> result = new ArrayList<>();
-        String[] arr = raw.split(",");
-        for(String s : arr) {
-            s = s.trim();
-
-            if(s.startsWith("'") && s.endsWith("'") && s.length() > 1) {
-                s = s.substring(1, s.length()-1);
-            }
-            result.add(s);
-        }
-        return result;
-    }
-
-    private List<String> parseAttributeList(String raw) {
-        List<String> result = new ArrayList<>();
-        String[] arr = raw.split(",");
-        for(String s : arr) {
-            result.add(s.trim());
-        }
-        return result;
-    }
-
-    private Map<String,String> parseNameValueList(String raw) {
-        Map<String,String> map = new LinkedHashMap<>();
-        String[] pairs = raw.split(",");
-        for(String p : pairs) {
-            p = p.trim();
-
-            String[] kv = p.split("=");
-            if(kv.length != 2) {
-                throw new RuntimeException("Invalid SET syntax near: " + p);
-            }
-            String key = kv[0].trim().toLowerCase();
-            String val = kv[1].trim();
-
-            if(val.startsWith("'") && val.endsWith("'") && val.length()>1) {
-                val = val.substring(1, val.length()-1);
-            }
-            map.put(key, val);
-        }
-        return map;
-    }
-
     private void deleteDirectory(File file) {
         if(file.isDirectory()){
             File[] children = file.listFiles();
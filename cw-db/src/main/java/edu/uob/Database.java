@@ -2,90 +2,368 @@ package edu.uob;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class Database {
     String name;
-    Map<String, Table> tables = new HashMap<>();
+    // Tables in memory, looked up without locking. Tables whose file hasn't been read yet are in
+    // unloaded instead, which is guarded by this; moving a table from one to the other takes it too.
+    Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final Map<String, File> unloaded = new HashMap<>();
+    ChangeLog changeLog;
+    // Held shared by every statement that appends to the change log, and exclusively by a checkpoint
+    // or DROP DATABASE, so the tables written out match the log that is thrown away
+    final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+    // Held for the whole of a checkpoint, so only one runs at a time and DROP DATABASE waits for it
+    private final Object checkpointLock = new Object();
+    // Set under logLock once the database has been dropped
+    boolean dropped = false;
+    // When the change log was last folded into the table files, see Checkpointer
+    long lastCheckpointMillis = System.currentTimeMillis();
 
     Database(String name) {
         this.name = name;
     }
 
-    // Retrieves a table by name
+    void openChangeLog(String dbRootPath) {
+        changeLog = new ChangeLog(new File(new File(dbRootPath, name), ChangeLog.FILE_NAME));
+    }
+
+    // Replays changes logged since the table files were last written, then folds them into the files.
+    // The log may touch any table, so a database with logged changes is loaded in full.
+    void recover(String dbRootPath) {
+        if(changeLog.isEmpty()) {
+            return;
+        }
+        loadAll();
+        int applied = changeLog.replay(this);
+        System.err.println("Replayed " + applied + " logged changes for database " + name);
+        checkpoint(dbRootPath);
+    }
+
+    // Writes out every table changed since it was last saved, after which the logged changes are no
+    // longer needed. The log is kept if any table couldn't be written. Returns whether it all worked.
+    // Changes only wait while snapshots of the changed tables are taken, along with the log position
+    // they match. The files are written after that, and then the log is cut back to that position.
+    boolean checkpoint(String dbRootPath) {
+        synchronized(checkpointLock) {
+            List<Table> changed = new ArrayList<>();
+            List<Table> snapshots = new ArrayList<>();
+            List<List<String>> indexes = new ArrayList<>();
+            long position;
+            logLock.writeLock().lock();
+            try {
+                if(dropped) {
+                    return true;
+                }
+                for(Table table : tables.values()) {
+                    table.lock.readLock().lock();
+                    try {
+                        if(table.isDirty()) {
+                            changed.add(table);
+                            // Changes of a transaction that hasn't committed yet aren't written out, a crash must lose them
+                            snapshots.add(table.committed != null ? table.committed : table.snapshot());
+                            indexes.add(indexDefinitions(table));
+                        }
+                    } finally {
+                        table.lock.readLock().unlock();
+                    }
+                }
+                position = changeLog.position();
+            } finally {
+                logLock.writeLock().unlock();
+            }
+
+            boolean[] written = new boolean[changed.size()];
+            boolean saved = true;
+            for(int i=0; i<changed.size(); i++) {
+                written[i] = writeTableFiles(snapshots.get(i), indexes.get(i), dbRootPath);
+                saved &= written[i];
+            }
+
+            logLock.writeLock().lock();
+            try {
+                if(dropped) {
+                    return true;
+                }
+                for(int i=0; i<changed.size(); i++) {
+                    Table table = changed.get(i);
+                    if(table.dropped) {
+                        // Dropped while it was being written, which may have brought its files back
+                        deleteTableFiles(table.name, dbRootPath);
+                    } else if(written[i]) {
+                        table.savedVersion = snapshots.get(i).version;
+                    }
+                }
+                if(saved) {
+                    changeLog.truncateTo(position);
+                    lastCheckpointMillis = System.currentTimeMillis();
+                }
+                return saved;
+            } finally {
+                logLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Retrieves a table by name, reading it from disk if this is the first time it's used
     Table getTable(String tableName) {
-        return tables.get(tableName.toLowerCase());
+        String key = tableName.toLowerCase();
+        Table table = tables.get(key);
+        if(table != null) {
+            return table;
+        }
+        synchronized(this) {
+            File tableFile = unloaded.remove(key);
+            if(tableFile != null) {
+                loadTableFromFile(tableFile);
+            }
+            return tables.get(key);
+        }
     }
 
-    void saveTableToFile(Table table, String dbRootPath) {
+    // Looks a table up and locks it for reading, or for writing if write is set, in which case the
+    // change log is locked too. Returns null, holding no locks, if there is no such table.
+    Table lockTable(String tableName, boolean write) {
+        if(write) {
+            logLock.readLock().lock();
+            if(dropped) {
+                logLock.readLock().unlock();
+                return null;
+            }
+        }
+        while(true) {
+            Table table = getTable(tableName);
+            if(table == null) {
+                if(write) {
+                    logLock.readLock().unlock();
+                }
+                return null;
+            }
+            (write ? table.lock.writeLock() : table.lock.readLock()).lock();
+            if(!table.dropped) {
+                return table;
+            }
+            // Dropped while we were waiting, a table of the same name may have been created since
+            (write ? table.lock.writeLock() : table.lock.readLock()).unlock();
+        }
+    }
+
+    void unlockTable(Table table, boolean write) {
+        if(write) {
+            table.lock.writeLock().unlock();
+            logLock.readLock().unlock();
+        } else {
+            table.lock.readLock().unlock();
+        }
+    }
+
+    synchronized boolean hasTable(String tableName) {
+        String key = tableName.toLowerCase();
+        return tables.containsKey(key) || unloaded.containsKey(key);
+    }
+
+    synchronized void putTable(Table table) {
+        tables.put(table.name.toLowerCase(), table);
+    }
+
+    // Adds a new table unless one of the same name exists, returns whether it was added
+    synchronized boolean addTable(Table table) {
+        if(hasTable(table.name)) {
+            return false;
+        }
+        putTable(table);
+        return true;
+    }
+
+    synchronized void removeTable(String tableName) {
+        String key = tableName.toLowerCase();
+        tables.remove(key);
+        unloaded.remove(key);
+    }
+
+    // Notes a table file found on disk, it's read on first use. If a table has both a binary and
+    // an old text file, the binary one was written later.
+    synchronized void registerTable(File tableFile) {
+        String rawName = tableFile.getName();
+        String key = rawName.substring(0, rawName.length()-4).toLowerCase();
+        if(!rawName.endsWith(TableFile.LEGACY_EXTENSION) || !unloaded.containsKey(key)) {
+            unloaded.put(key, tableFile);
+        }
+    }
+
+    // Reads every table that isn't in memory yet. The lock is taken per table, so sessions
+    // only wait for the table being read rather than for the whole database.
+    void loadAll() {
+        List<String> pending;
+        synchronized(this) {
+            pending = new ArrayList<>(unloaded.keySet());
+        }
+        for(String tableName : pending) {
+            getTable(tableName);
+        }
+    }
+
+    // Called when the database is dropped or the server shuts down, once no statement or checkpoint
+    // is changing it any more. Also stops a background load from going looking for its files.
+    void close() {
+        synchronized(checkpointLock) {
+            logLock.writeLock().lock();
+            try {
+                dropped = true;
+                synchronized(this) {
+                    unloaded.clear();
+                }
+                changeLog.close();
+            } finally {
+                logLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Writes a table nobody else can see yet, returns whether it could be written
+    private boolean saveTableToFile(Table table, String dbRootPath) {
+        if(!writeTableFiles(table, indexDefinitions(table), dbRootPath)) {
+            return false;
+        }
+        table.savedVersion = table.version;
+        return true;
+    }
+
+    // Writes the rows of a table that no longer changes, e.g. a snapshot, and its index definitions.
+    // Returns whether both could be written.
+    private boolean writeTableFiles(Table rows, List<String> indexes, String dbRootPath) {
         File dbFolder = new File(dbRootPath, name);
         // Ensure the database folder exists
         if(!dbFolder.exists()) {
             dbFolder.mkdir();
         }
-        File tableFile = new File(dbFolder, table.name.toLowerCase() + ".tab");
-        try(PrintWriter pw = new PrintWriter(new FileWriter(tableFile, false))) {
-            List<String> cols = table.getColumns();
-            // Write column headers
-            pw.println(String.join("\t", cols));
-
-            for(Row r : table.rows) {
-                StringBuilder sb = new StringBuilder();
-                // First column is the row ID
-                sb.append(r.id);
-                for(int i=1; i<cols.size(); i++){
-                    String cName = cols.get(i).toLowerCase();
-                    String val = r.values.getOrDefault(cName, "");
-                    sb.append("\t").append(val);
-                }
-                // Write row data
-                pw.println(sb.toString());
+        File tableFile = new File(dbFolder, rows.name.toLowerCase() + TableFile.EXTENSION);
+        try {
+            TableFile.write(rows, tableFile);
+            // A table migrated from the text format doesn't need its old file any more
+            File legacyFile = new File(dbFolder, rows.name.toLowerCase() + TableFile.LEGACY_EXTENSION);
+            if(legacyFile.exists() && !legacyFile.delete()) {
+                System.err.println("Failed to delete old table file: " + legacyFile.getAbsolutePath());
             }
         } catch(IOException e) {
             System.err.println("Failed to save table to file: " + tableFile.getAbsolutePath());
+            return false;
+        }
+        return saveIndexDefinitions(rows.name, indexes, dbFolder);
+    }
+
+    private void deleteTableFiles(String tableName, String dbRootPath) {
+        File dbFolder = new File(dbRootPath, name);
+        String prefix = tableName.toLowerCase();
+        for(String extension : new String[] { TableFile.EXTENSION, TableFile.LEGACY_EXTENSION, ".idx" }) {
+            File file = new File(dbFolder, prefix + extension);
+            if(file.exists() && !file.delete()) {
+                System.err.println("Failed to delete table file: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    // Indexes are rebuilt on load, so only the indexed column names are stored, one per line
+    // followed by the kind of index unless it's a hash index
+    private static List<String> indexDefinitions(Table table) {
+        List<String> lines = new ArrayList<>();
+        for(Index index : table.indexes.values()) {
+            lines.add(index instanceof HashIndex ? index.column : index.column + " " + index.kind());
+        }
+        return lines;
+    }
+
+    private boolean saveIndexDefinitions(String tableName, List<String> indexes, File dbFolder) {
+        File indexFile = new File(dbFolder, tableName.toLowerCase() + ".idx");
+        if(indexes.isEmpty()) {
+            if(indexFile.exists() && !indexFile.delete()) {
+                System.err.println("Failed to delete index file: " + indexFile.getAbsolutePath());
+                return false;
+            }
+            return true;
+        }
+        try(PrintWriter pw = new PrintWriter(new FileWriter(indexFile, false))) {
+            for(String line : indexes) {
+                pw.println(line);
+            }
+        } catch(IOException e) {
+            System.err.println("Failed to save index file: " + indexFile.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    private void loadIndexDefinitions(Table table, File dbFolder) {
+        File indexFile = new File(dbFolder, table.name.toLowerCase() + ".idx");
+        if(!indexFile.exists()) {
+            return;
+        }
+        try(BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while((line = br.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if(table.hasColumn(parts[0])) {
+                    table.createIndex(parts[0], parts.length > 1 && parts[1].equalsIgnoreCase(BTreeIndex.KIND));
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Failed to load index file: " + indexFile.getAbsolutePath());
         }
     }
 
     void loadTableFromFile(File tableFile) {
+        String rawName = tableFile.getName();
+        boolean legacy = rawName.endsWith(TableFile.LEGACY_EXTENSION);
+        try {
+            Table tbl = legacy ? loadTextTable(tableFile) : TableFile.read(tableFile);
+            // Columns adapt their encoding while rows are added, now they can choose with all the data in view
+            tbl.reencodeColumns();
+            loadIndexDefinitions(tbl, tableFile.getParentFile());
+            if(legacy) {
+                // Tables still in the old text format are moved over to the binary one when first read,
+                // before anyone else can see the table. If that fails it stays dirty for the next checkpoint.
+                saveTableToFile(tbl, tableFile.getParentFile().getParent());
+            } else {
+                tbl.savedVersion = tbl.version;
+            }
+            // Store table in the database
+            tables.put(rawName.substring(0, rawName.length()-4).toLowerCase(), tbl);
+        } catch(IOException | RuntimeException e) {
+            System.err.println("Failed to load table from file: " + tableFile.getAbsolutePath());
+        }
+    }
+
+    // Reads a table saved in the old tab-separated text format
+    private Table loadTextTable(File tableFile) throws IOException {
         String rawName = tableFile.getName();
         String tName = rawName.substring(0, rawName.length()-4);
-        Table tbl = null;
+        Table tbl;
         try(BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
             String header = br.readLine();
             if(header == null) {
                 // If the file is empty, create a table with no columns
-                tbl = new Table(tName, new ArrayList<>());
-            }
-            else {
-                // Split header row to get column names
-                String[] colArr = header.split("\t");
-                List<String> loadedCols = Arrays.asList(colArr);
-                tbl = new Table(tName, loadedCols.subList(1, loadedCols.size()), true);
-
-                String line;
-                while((line = br.readLine()) != null) {
-                    // Split row data
-                    String[] parts = line.split("\t", -1);
-                    if(parts.length != colArr.length) {
-                        throw new IOException("Row column count mismatch");
-                    }
-                    int rid = Integer.parseInt(parts[0]);
-                    Row row = new Row(rid);
-                    for(int i=1; i<colArr.length; i++){
-                        String cName = colArr[i].toLowerCase();
-                        row.values.put(cName, parts[i]);
-                    }
-                    tbl.rows.add(row);
-                    if(rid >= tbl.nextId) {
-                        // Ensure nextId is correct
-                        tbl.nextId = rid + 1;
-                    }
+                return new Table(tName, new ArrayList<>());
+            }
+            // Split header row to get column names
+            String[] colArr = header.split("\t");
+            List<String> loadedCols = Arrays.asList(colArr);
+            tbl = new Table(tName, loadedCols.subList(1, loadedCols.size()));
+
+            String line;
+            while((line = br.readLine()) != null) {
+                // Split row data
+                String[] parts = line.split("\t", -1);
+                if(parts.length != colArr.length) {
+                    throw new IOException("Row column count mismatch");
                 }
+                int rid = Integer.parseInt(parts[0]);
+                // insertRow also makes sure nextId is past every loaded id
+                tbl.insertRow(rid, Arrays.asList(parts).subList(1, parts.length));
             }
-            // Store table in the database
-            tables.put(tName.toLowerCase(), tbl);
-        } catch(IOException e) {
-            System.err.println("Failed to load table from file: " + tableFile.getAbsolutePath());
         }
+        return tbl;
     }
 }
@@ -0,0 +1,114 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the records of a CSV or TSV file one at a time, for LOAD DATA. In a CSV file a value can be
+ * put in double quotes to hold commas, line breaks or (doubled) quotes; TSV values are taken as they
+ * are. Values are turned into stored values the way INSERT does it: quoted ones are kept exactly,
+ * bare ones are written in canonical form (see {@link ValueType}). Blank lines are skipped.
+ */
+class DelimitedReader implements Closeable {
+    private final Reader in;
+    private final char separator;
+    private final boolean quoting;
+    private final char[] buffer = new char[1 << 16];
+    private int pos = 0;
+    private int limit = 0;
+    private final StringBuilder field = new StringBuilder();
+    // Line the record last returned by next() starts on, counting from 1
+    int line = 0;
+    private int nextLine = 1;
+
+    DelimitedReader(Reader in, char separator, boolean quoting) {
+        this.in = in;
+        this.separator = separator;
+        this.quoting = quoting;
+    }
+
+    // Files named .tsv or .tab are tab-separated, anything else is taken to be CSV
+    static DelimitedReader open(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        boolean tabs = name.endsWith(".tsv") || name.endsWith(".tab");
+        Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        return new DelimitedReader(reader, tabs ? '\t' : ',', !tabs);
+    }
+
+    // The values of the next record, or null at the end of the file
+    List<String> next() throws IOException {
+        int c = read();
+        while(c == '\n' || c == '\r') {
+            if(c == '\n') {
+                nextLine++;
+            }
+            c = read();
+        }
+        if(c < 0) {
+            return null;
+        }
+        line = nextLine;
+        List<String> values = new ArrayList<>();
+        while(true) {
+            field.setLength(0);
+            boolean quoted = quoting && c == '"';
+            if(quoted) {
+                c = read();
+                while(true) {
+                    if(c < 0) {
+                        throw new IOException("Unterminated quoted value on line " + line);
+                    }
+                    if(c == '"') {
+                        c = read();
+                        // A doubled quote stands for one, anything else ends the value
+                        if(c != '"') {
+                            break;
+                        }
+                    }
+                    if(c == '\n') {
+                        nextLine++;
+                    }
+                    field.append((char) c);
+                    c = read();
+                }
+                if(c >= 0 && c != separator && c != '\n' && c != '\r') {
+                    throw new IOException("Unexpected text after a quoted value on line " + nextLine);
+                }
+            } else {
+                while(c >= 0 && c != separator && c != '\n' && c != '\r') {
+                    field.append((char) c);
+                    c = read();
+                }
+            }
+            String text = field.toString();
+            values.add(quoted ? text : ValueType.canonical(text));
+            if(c != separator) {
+                break;
+            }
+            c = read();
+        }
+        if(c == '\n') {
+            nextLine++;
+        }
+        return values;
+    }
+
+    private int read() throws IOException {
+        if(pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if(limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,11 @@
+package edu.uob;
+
+/** When a change counts as committed, i.e. when the client may be sent [OK]. */
+enum Durability {
+    // The change log is fsynced before every single statement is acknowledged
+    SYNC,
+    // Statements wait for the next group commit, which fsyncs once for everything written since the last one
+    GROUP,
+    // The change is handed to the OS and acknowledged straight away, a crash of the machine may lose it
+    BUFFERED
+}
@@ -0,0 +1,124 @@
+package edu.uob;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides when logged changes are durable enough to acknowledge. In GROUP mode, writers from all
+ * sessions register the log position they need and block; a background thread fsyncs every log
+ * with pending writes once per interval, or sooner when batchSize statements are waiting, and
+ * then releases all of them together. One fsync thus covers many statements.
+ */
+class GroupCommitter {
+    private final Durability mode;
+    private final long intervalMillis;
+    private final int batchSize;
+
+    // Guarded by this
+    private final Set<ChangeLog> dirtyLogs = new HashSet<>();
+    private int pendingStatements = 0;
+    private Thread flusher = null;
+    private boolean stopped = false;
+
+    GroupCommitter(Durability mode, long intervalMillis, int batchSize) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+    }
+
+    // Settings come from -Ddb.durability=sync|group|buffered, -Ddb.groupCommitMillis and -Ddb.groupCommitBatch
+    static GroupCommitter fromSystemProperties() {
+        Durability mode = Durability.valueOf(System.getProperty("db.durability", "group").toUpperCase());
+        long interval = Long.parseLong(System.getProperty("db.groupCommitMillis", "5"));
+        int batch = Integer.parseInt(System.getProperty("db.groupCommitBatch", "64"));
+        return new GroupCommitter(mode, interval, batch);
+    }
+
+    // Blocks until everything up to position in log meets this committer's durability guarantee
+    void awaitDurable(ChangeLog log, long position) {
+        switch(mode) {
+            case BUFFERED:
+                return;
+            case SYNC:
+                log.force();
+                log.awaitForced(position);
+                return;
+            default: {
+                boolean queued;
+                synchronized(this) {
+                    // Once stopped there's no group commit thread, the change is then forced here
+                    queued = !stopped;
+                    if(queued) {
+                        dirtyLogs.add(log);
+                        pendingStatements++;
+                        if(flusher == null) {
+                            flusher = new Thread(this::flushLoop, "group-commit");
+                            flusher.setDaemon(true);
+                            flusher.start();
+                        }
+                        // Wake the flusher when it's idle, and again when the batch is full
+                        if(pendingStatements == 1 || pendingStatements >= batchSize) {
+                            notifyAll();
+                        }
+                    }
+                }
+                if(!queued) {
+                    log.force();
+                }
+                log.awaitForced(position);
+            }
+        }
+    }
+
+    // Stops the group commit thread after its current round
+    void stop() {
+        Thread running;
+        synchronized(this) {
+            stopped = true;
+            notifyAll();
+            running = flusher;
+        }
+        if(running == null) {
+            return;
+        }
+        try {
+            running.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        while(!Thread.currentThread().isInterrupted()) {
+            Set<ChangeLog> batch;
+            boolean last;
+            synchronized(this) {
+                try {
+                    // Sleep until something is logged, then give others the interval to join in
+                    while(pendingStatements == 0 && !stopped) {
+                        wait();
+                    }
+                    if(pendingStatements < batchSize && !stopped) {
+                        wait(intervalMillis);
+                    }
+                } catch(InterruptedException e) {
+                    return;
+                }
+                // After stop() there is one last round for whatever is still pending
+                last = stopped;
+                if(dirtyLogs.isEmpty() && !last) {
+                    continue;
+                }
+                batch = new HashSet<>(dirtyLogs);
+                dirtyLogs.clear();
+                pendingStatements = 0;
+            }
+            for(ChangeLog log : batch) {
+                log.force();
+            }
+            if(last) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package edu.uob;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * In-memory hash index from the values in one column to the slots of the rows holding them,
+ * used by {@link Table} to answer {@code column == value} without scanning every row.
+ * Numbers are keyed by value, so 65 and 65.0 share an entry and callers re-check what they find.
+ */
+class HashIndex extends Index {
+    static final String KIND = "HASH";
+
+    private final Map<String, SlotList> entries = new HashMap<>();
+
+    HashIndex(String column) {
+        super(column);
+    }
+
+    String kind() {
+        return KIND;
+    }
+
+    void add(String value, int slot) {
+        entries.computeIfAbsent(key(value), v -> new SlotList()).add(slot);
+    }
+
+    void remove(String value, int slot) {
+        String key = key(value);
+        SlotList matches = entries.get(key);
+        if(matches == null) {
+            return;
+        }
+        matches.remove(slot);
+        if(matches.size() == 0) {
+            entries.remove(key);
+        }
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int[] lookup(String value) {
+        SlotList matches = entries.get(key(value));
+        if(matches == null) {
+            return new int[0];
+        }
+        return matches.toArray();
+    }
+
+    private static String key(String value) {
+        if(ValueType.of(value) == ValueType.FLOAT) {
+            return new BigDecimal(value).stripTrailingZeros().toPlainString();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,150 @@
+package edu.uob;
+
+import java.util.*;
+
+/**
+ * Equi-join of two tables for the JOIN command. Instead of comparing every pair of rows it
+ * hashes the right table's rows by join column and probes that with the left table's rows;
+ * when the right table already has an index on its join column, that index is probed directly.
+ * If the left table is the smaller one only the right rows it can match are hashed.
+ * Matches are always reported in the order the old nested loop produced them
+ * (left table order, then right table order), so joined ids come out the same. They are
+ * found one at a time by next(), so a reply can be written out a batch at a time.
+ */
+class HashJoin {
+    private final Table left;
+    private final String leftCol;
+    private final Table right;
+    private final String rightCol;
+    private final int leftOrdinal;
+    private final int rightOrdinal;
+    // Probed for each left row: the right table's index, or else the right rows hashed by value
+    private final Index rightIndex;
+    private final Map<String, SlotList> build;
+
+    // The left row being probed, the right rows it may match and how far through them the join is
+    private int l = -1;
+    private String value;
+    private int[] candidates = new int[0];
+    private SlotList matches;
+    private int position = 0;
+    // Matches found for left row l so far
+    private int matched = 0;
+    // The match next() found last
+    int leftSlot;
+    int rightSlot;
+
+    HashJoin(Table left, String leftCol, Table right, String rightCol) {
+        this.left = left;
+        this.leftCol = leftCol;
+        this.right = right;
+        this.rightCol = rightCol;
+        leftOrdinal = left.ordinal(leftCol);
+        rightOrdinal = right.ordinal(rightCol);
+
+        // Index nested loop: one index probe per left row
+        rightIndex = right.indexes.get(rightCol.toLowerCase());
+        if(rightIndex != null) {
+            build = null;
+            return;
+        }
+
+        Index leftIndex = left.indexes.get(leftCol.toLowerCase());
+        if(leftIndex == null && right.liveCount() <= left.liveCount()) {
+            // Build on the smaller right side
+            build = buildTable(right, rightOrdinal);
+            return;
+        }
+        // The left side is smaller or has an index, so only the right rows whose value occurs
+        // on the left are hashed. Probing with the left side then still needs no more memory
+        // than the two tables, however many rows the join produces.
+        Set<String> leftValues = leftIndex == null ? distinctValues(left, leftOrdinal) : null;
+        build = new HashMap<>();
+        for(int r=0; r<right.rowCount; r++) {
+            if(!right.isLive(r)) {
+                continue;
+            }
+            String rightValue = right.cellValue(r, rightOrdinal);
+            // The index also finds the same number written differently, the probe doesn't
+            if(leftIndex != null ? leftIndex.lookup(rightValue).length > 0 : leftValues.contains(rightValue)) {
+                build.computeIfAbsent(rightValue, v -> new SlotList()).add(r);
+            }
+        }
+    }
+
+    // Moves on to the next match, leftSlot and rightSlot, and returns false once there are none left.
+    // The left side is probed in order, so matches come out in left then right table order.
+    boolean next() {
+        while(true) {
+            if(rightIndex != null) {
+                while(position < candidates.length) {
+                    int r = candidates[position++];
+                    // The index also finds the same number written differently
+                    if(right.cellValue(r, rightOrdinal).equals(value)) {
+                        return found(r);
+                    }
+                }
+            } else if(matches != null && position < matches.size()) {
+                return found(matches.get(position++));
+            }
+            if(l + 1 >= left.rowCount) {
+                l = left.rowCount;
+                return false;
+            }
+            l++;
+            if(!left.isLive(l)) {
+                continue;
+            }
+            value = left.cellValue(l, leftOrdinal);
+            if(rightIndex != null) {
+                candidates = rightIndex.lookup(value);
+            } else {
+                matches = build.get(value);
+            }
+            position = 0;
+            matched = 0;
+        }
+    }
+
+    private boolean found(int r) {
+        leftSlot = l;
+        rightSlot = r;
+        matched++;
+        return true;
+    }
+
+    // The rest of this join, run on copies of the two tables with the same slots (their snapshots)
+    HashJoin continueOn(Table leftCopy, Table rightCopy) {
+        HashJoin rest = new HashJoin(leftCopy, leftCol, rightCopy, rightCol);
+        if(l >= 0) {
+            // Back onto row l, past the matches already found for it
+            rest.l = l - 1;
+            for(int i=0; i<matched; i++) {
+                rest.next();
+            }
+        }
+        return rest;
+    }
+
+    private static Set<String> distinctValues(Table table, int ordinal) {
+        Set<String> values = new HashSet<>();
+        for(int slot=0; slot<table.rowCount; slot++) {
+            if(table.isLive(slot)) {
+                values.add(table.cellValue(slot, ordinal));
+            }
+        }
+        return values;
+    }
+
+    // Join column value to the slots holding it, each list in table order
+    private static Map<String, SlotList> buildTable(Table table, int ordinal) {
+        Map<String, SlotList> build = new HashMap<>();
+        for(int slot=0; slot<table.rowCount; slot++) {
+            if(!table.isLive(slot)) {
+                continue;
+            }
+            build.computeIfAbsent(table.cellValue(slot, ordinal), v -> new SlotList()).add(slot);
+        }
+        return build;
+    }
+}
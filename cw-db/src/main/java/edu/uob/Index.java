@@ -0,0 +1,27 @@
+package edu.uob;
+
+/**
+ * An in-memory index from the values in one column of a {@link Table} to the slots of the rows
+ * holding them. The table keeps every index up to date as rows are inserted, updated and deleted;
+ * what's found through one is re-checked against the WHERE clause, so lookups may return extra slots.
+ */
+abstract class Index {
+    // Lower-case name of the indexed column
+    final String column;
+
+    Index(String column) {
+        this.column = column;
+    }
+
+    // The keyword used for this kind of index in CREATE INDEX ... USING and in the .idx file
+    abstract String kind();
+
+    abstract void add(String value, int slot);
+
+    abstract void remove(String value, int slot);
+
+    abstract void clear();
+
+    // Slots holding value (or the same number written differently), in table order
+    abstract int[] lookup(String value);
+}
@@ -0,0 +1,91 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a command into tokens in a single pass over its characters.
+ * Words are runs of letters and digits, numbers may carry a sign and a fractional part,
+ * and string literals are enclosed in single quotes (commas and semicolons inside them
+ * are just part of the value).
+ */
+class Lexer {
+
+    private static final List<String> TWO_CHAR_SYMBOLS = List.of("==", "!=", ">=", "<=");
+    private static final String ONE_CHAR_SYMBOLS = "(),*=><?";
+
+    static List<Token> tokenize(String command) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int length = command.length();
+        while(i < length) {
+            char c = command.charAt(i);
+            if(Character.isWhitespace(c)) {
+                i++;
+            }
+            else if(c == '\'') {
+                int close = command.indexOf('\'', i + 1);
+                if(close < 0) {
+                    throw new RuntimeException("Unterminated string literal starting at position " + i);
+                }
+                tokens.add(new Token(Token.Kind.STRING, command.substring(i + 1, close), i));
+                i = close + 1;
+            }
+            else if(isAlphanumeric(c) || ((c == '+' || c == '-') && i + 1 < length && isDigit(command.charAt(i + 1)))) {
+                i = readWordOrNumber(command, i, tokens);
+            }
+            else if(i + 1 < length && TWO_CHAR_SYMBOLS.contains(command.substring(i, i + 2))) {
+                tokens.add(new Token(Token.Kind.SYMBOL, command.substring(i, i + 2), i));
+                i += 2;
+            }
+            else if(ONE_CHAR_SYMBOLS.indexOf(c) >= 0) {
+                tokens.add(new Token(Token.Kind.SYMBOL, String.valueOf(c), i));
+                i++;
+            }
+            else {
+                throw new RuntimeException("Unexpected character '" + c + "' at position " + i);
+            }
+        }
+        tokens.add(new Token(Token.Kind.END, "", length));
+        return tokens;
+    }
+
+    // A run of letters and digits is a WORD unless it is all digits (with an optional sign
+    // and fractional part), in which case it is a NUMBER
+    private static int readWordOrNumber(String command, int start, List<Token> tokens) {
+        int i = start;
+        boolean signed = command.charAt(i) == '+' || command.charAt(i) == '-';
+        if(signed) {
+            i++;
+        }
+        boolean allDigits = true;
+        while(i < command.length() && isAlphanumeric(command.charAt(i))) {
+            allDigits &= isDigit(command.charAt(i));
+            i++;
+        }
+        if(allDigits && i + 1 < command.length() && command.charAt(i) == '.' && isDigit(command.charAt(i + 1))) {
+            i++;
+            while(i < command.length() && isDigit(command.charAt(i))) {
+                i++;
+            }
+        }
+        String text = command.substring(start, i);
+        if(!allDigits) {
+            if(signed) {
+                throw new RuntimeException("Invalid number " + text);
+            }
+            tokens.add(new Token(Token.Kind.WORD, text, start));
+        } else {
+            tokens.add(new Token(Token.Kind.NUMBER, text, start));
+        }
+        return i;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || isDigit(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,52 @@
+package edu.uob;
+
+import java.util.List;
+
+/**
+ * A value written in a command, either quoted ('Simon') or bare (65, TRUE),
+ * or a ? placeholder in a prepared statement that is filled in by EXECUTE.
+ */
+class Literal {
+    final String value;
+    final boolean quoted;
+    // Position of the placeholder among the statement's ?s, or -1 for an actual value
+    final int parameterIndex;
+
+    Literal(String value, boolean quoted) {
+        this.value = value;
+        this.quoted = quoted;
+        this.parameterIndex = -1;
+    }
+
+    private Literal(int parameterIndex) {
+        this.value = null;
+        this.quoted = false;
+        this.parameterIndex = parameterIndex;
+    }
+
+    static Literal parameter(int parameterIndex) {
+        return new Literal(parameterIndex);
+    }
+
+    // The text stored for this value: bare numbers and booleans are written in canonical form,
+    // see ValueType, while quoted values are kept exactly as written
+    String storedValue() {
+        return quoted ? value : ValueType.canonical(value);
+    }
+
+    boolean isParameter() {
+        return parameterIndex >= 0;
+    }
+
+    Literal bind(List<Literal> args) {
+        return isParameter() ? args.get(parameterIndex) : this;
+    }
+
+    @Override
+    public String toString() {
+        if(isParameter()) {
+            return "?";
+        }
+        return quoted ? "'" + value + "'" : value;
+    }
+}
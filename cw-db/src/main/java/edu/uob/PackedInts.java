@@ -0,0 +1,79 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-width array of non-negative integers packed into longs, {@code bits} bits per value.
+ * A width of 0 is allowed and means every value is 0.
+ */
+class PackedInts {
+    final int bits;
+    private final long mask;
+    private long[] words;
+
+    PackedInts(int capacity, int bits) {
+        this.bits = bits;
+        this.mask = bits == 64 ? -1L : (1L << bits) - 1;
+        this.words = new long[wordsFor(capacity, bits)];
+    }
+
+    // Number of bits needed to hold values up to maxValue
+    static int bitsFor(long maxValue) {
+        return 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    long maxValue() {
+        return mask;
+    }
+
+    long get(int i) {
+        if(bits == 0) {
+            return 0;
+        }
+        long bitPos = (long) i * bits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        long value = words[word] >>> shift;
+        if(shift + bits > 64) {
+            value |= words[word + 1] << (64 - shift);
+        }
+        return value & mask;
+    }
+
+    void set(int i, long value) {
+        if(bits == 0) {
+            return;
+        }
+        long bitPos = (long) i * bits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        words[word] = (words[word] & ~(mask << shift)) | ((value & mask) << shift);
+        if(shift + bits > 64) {
+            int spill = 64 - shift;
+            words[word + 1] = (words[word + 1] & ~(mask >>> spill)) | ((value & mask) >>> spill);
+        }
+    }
+
+    void grow(int capacity) {
+        words = Arrays.copyOf(words, wordsFor(capacity, bits));
+    }
+
+    PackedInts copy() {
+        PackedInts copy = new PackedInts(0, bits);
+        copy.words = words.clone();
+        return copy;
+    }
+
+    // A copy of the first count values at a new width, which must be wide enough for all of them
+    PackedInts withBits(int newBits, int capacity, int count) {
+        PackedInts wider = new PackedInts(capacity, newBits);
+        for(int i=0; i<count; i++) {
+            wider.set(i, get(i));
+        }
+        return wider;
+    }
+
+    private static int wordsFor(int capacity, int bits) {
+        return (int) (((long) capacity * bits + 63) >>> 6);
+    }
+}
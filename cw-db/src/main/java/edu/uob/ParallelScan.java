@@ -0,0 +1,99 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the per-row work of scans over large tables on the common fork/join pool: testing the
+ * WHERE clause against every row, and turning the matching rows into reply text. Work is split
+ * into chunks of consecutive slots and the results are put back together in slot order, so
+ * callers see exactly what a scan on the calling thread would have produced.
+ */
+class ParallelScan {
+    // Rows handled by one task
+    private static final int CHUNK_ROWS = 16 * 1024;
+    // Tables with fewer rows than this are scanned on the calling thread (-Ddb.parallelScanRows).
+    // A single core gains nothing from splitting the work, so there it's off unless set explicitly.
+    private static volatile int threshold = ForkJoinPool.getCommonPoolParallelism() > 1
+            ? Integer.parseInt(System.getProperty("db.parallelScanRows", "100000")) : Integer.MAX_VALUE;
+
+    static boolean worthwhile(int rows) {
+        return rows >= threshold;
+    }
+
+    // Lets tests reach the parallel paths with small tables, returns the threshold it replaces
+    static int setThreshold(int rows) {
+        int previous = threshold;
+        threshold = rows;
+        return previous;
+    }
+
+    // Slots 0 .. rowCount-1 that pass test, ascending
+    static int[] filter(int rowCount, IntPredicate test) {
+        return ForkJoinPool.commonPool().invoke(new FilterTask(test, 0, rowCount));
+    }
+
+    interface RowFormatter {
+        void append(int slot, StringBuilder text);
+    }
+
+    // Formats the rows in parallel, a window of a few chunks per worker from slots[start], and
+    // appends them to text in order. Returns where the next window starts, so a huge result is
+    // formatted a window at a time and never held in memory as text.
+    static int format(int[] slots, int start, RowFormatter formatter, StringBuilder text) {
+        int window = CHUNK_ROWS * ForkJoinPool.getCommonPoolParallelism();
+        int to = Math.min(slots.length, start + window);
+        int chunks = (to - start + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        String[] formatted = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+            StringBuilder sb = new StringBuilder();
+            int end = Math.min(to, start + (c + 1) * CHUNK_ROWS);
+            for(int i = start + c * CHUNK_ROWS; i < end; i++) {
+                formatter.append(slots[i], sb);
+            }
+            return sb.toString();
+        }).toArray(String[]::new);
+        for(String chunk : formatted) {
+            text.append(chunk);
+        }
+        return to;
+    }
+
+    private static class FilterTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient IntPredicate test;
+        private final int from;
+        private final int to;
+
+        FilterTask(IntPredicate test, int from, int to) {
+            this.test = test;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if(to - from <= CHUNK_ROWS) {
+                int[] matched = new int[to - from];
+                int count = 0;
+                for(int slot=from; slot<to; slot++) {
+                    if(test.test(slot)) {
+                        matched[count++] = slot;
+                    }
+                }
+                return Arrays.copyOf(matched, count);
+            }
+            int middle = (from + to) >>> 1;
+            FilterTask left = new FilterTask(test, from, middle);
+            left.fork();
+            int[] right = new FilterTask(test, middle, to).compute();
+            int[] first = left.join();
+            int[] merged = Arrays.copyOf(first, first.length + right.length);
+            System.arraycopy(right, 0, merged, first.length, right.length);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recursive-descent parser turning the tokens of one command (without its trailing ';')
+ * into a {@link Statement}. Syntax errors are reported as RuntimeExceptions whose message
+ * ends up in the [ERROR] reply.
+ */
+class Parser {
+    private static final List<String> COMPARATORS = List.of("==", "!=", ">", "<", ">=", "<=");
+
+    private final List<Token> tokens;
+    private int pos = 0;
+    // Number of ? placeholders seen so far, or -1 when placeholders aren't allowed (outside PREPARE)
+    private int parameterCount = -1;
+
+    private Parser(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    static Statement parse(String command) {
+        Parser parser = new Parser(Lexer.tokenize(command));
+        Statement statement = parser.statement();
+        parser.expectEnd();
+        return statement;
+    }
+
+    private Statement statement() {
+        Token first = next();
+        if(first.isKeyword("USE")) {
+            return new Statement.Use(name("database name"));
+        }
+        if(first.isKeyword("CREATE")) {
+            return create();
+        }
+        if(first.isKeyword("DROP")) {
+            return drop();
+        }
+        if(first.isKeyword("ALTER")) {
+            return alter();
+        }
+        if(first.isKeyword("INSERT")) {
+            return insert();
+        }
+        if(first.isKeyword("SELECT")) {
+            return select();
+        }
+        if(first.isKeyword("UPDATE")) {
+            return update();
+        }
+        if(first.isKeyword("DELETE")) {
+            return delete();
+        }
+        if(first.isKeyword("JOIN")) {
+            return join();
+        }
+        if(first.isKeyword("VACUUM") && parameterCount < 0) {
+            return new Statement.Vacuum(name("table name"));
+        }
+        if(first.isKeyword("CHECKPOINT") && parameterCount < 0) {
+            return new Statement.Checkpoint();
+        }
+        if(first.isKeyword("SHOW") && parameterCount < 0) {
+            expectKeyword("CACHE");
+            return new Statement.ShowCache();
+        }
+        if(first.isKeyword("LOAD") && parameterCount < 0) {
+            return load();
+        }
+        if(first.isKeyword("BEGIN") && parameterCount < 0) {
+            acceptKeyword("TRANSACTION");
+            return new Statement.Begin();
+        }
+        if(first.isKeyword("COMMIT") && parameterCount < 0) {
+            return new Statement.Commit();
+        }
+        if(first.isKeyword("ROLLBACK") && parameterCount < 0) {
+            return new Statement.Rollback();
+        }
+        if(first.isKeyword("PREPARE") && parameterCount < 0) {
+            return prepare();
+        }
+        if(first.isKeyword("EXECUTE") && parameterCount < 0) {
+            return execute();
+        }
+        throw new RuntimeException("Command not recognized or invalid syntax");
+    }
+
+    // CREATE DATABASE <name> | CREATE TABLE <name> [ ( <name>, ... ) ]
+    // | CREATE INDEX ON <table> ( <column> ) [ USING HASH|BTREE ]
+    private Statement create() {
+        if(acceptKeyword("DATABASE")) {
+            return new Statement.CreateDatabase(name("database name"));
+        }
+        if(acceptKeyword("INDEX")) {
+            String[] target = indexTarget();
+            boolean ordered = false;
+            if(acceptKeyword("USING")) {
+                if(acceptKeyword(BTreeIndex.KIND)) {
+                    ordered = true;
+                } else {
+                    expectKeyword(HashIndex.KIND);
+                }
+            }
+            return new Statement.CreateIndex(target[0], target[1], ordered);
+        }
+        expectKeyword("TABLE");
+        String tableName = name("table name");
+        List<String> columns = new ArrayList<>();
+        if(acceptSymbol("(")) {
+            if(!acceptSymbol(")")) {
+                columns = nameList("column name");
+                expectSymbol(")");
+            }
+        }
+        return new Statement.CreateTable(tableName, columns);
+    }
+
+    // DROP DATABASE <name> | DROP TABLE <name> | DROP INDEX ON <table> ( <column> )
+    private Statement drop() {
+        if(acceptKeyword("DATABASE")) {
+            return new Statement.DropDatabase(name("database name"));
+        }
+        if(acceptKeyword("INDEX")) {
+            String[] target = indexTarget();
+            return new Statement.DropIndex(target[0], target[1]);
+        }
+        expectKeyword("TABLE");
+        return new Statement.DropTable(name("table name"));
+    }
+
+    // ON <table> ( <column> ), returns the table and column name
+    private String[] indexTarget() {
+        expectKeyword("ON");
+        String tableName = name("table name");
+        expectSymbol("(");
+        String columnName = name("column name");
+        expectSymbol(")");
+        return new String[] { tableName, columnName };
+    }
+
+    // ALTER TABLE <name> ADD|DROP <column>
+    private Statement alter() {
+        expectKeyword("TABLE");
+        String tableName = name("table name");
+        String action;
+        if(acceptKeyword("ADD")) {
+            action = "ADD";
+        } else {
+            expectKeyword("DROP");
+            action = "DROP";
+        }
+        return new Statement.AlterTable(tableName, action, name("column name"));
+    }
+
+    // INSERT INTO <name> VALUES ( <value>, ... ), ...
+    private Statement insert() {
+        expectKeyword("INTO");
+        String tableName = name("table name");
+        expectKeyword("VALUES");
+        List<List<Literal>> rows = new ArrayList<>();
+        do {
+            expectSymbol("(");
+            List<Literal> values = new ArrayList<>();
+            if(!acceptSymbol(")")) {
+                do {
+                    values.add(literal());
+                } while(acceptSymbol(","));
+                expectSymbol(")");
+            }
+            rows.add(values);
+        } while(acceptSymbol(","));
+        return new Statement.Insert(tableName, rows);
+    }
+
+    // LOAD DATA '<path>' INTO <name>
+    private Statement load() {
+        expectKeyword("DATA");
+        Token path = next();
+        if(path.kind != Token.Kind.STRING) {
+            throw syntaxError("a quoted file path", path);
+        }
+        expectKeyword("INTO");
+        return new Statement.Load(path.text, name("table name"));
+    }
+
+    // SELECT * | <column>, ... FROM <name> [ WHERE <condition> ] [ ORDER BY <column> [ ASC|DESC ] ]
+    private Statement select() {
+        List<String> columns = null;
+        if(!acceptSymbol("*")) {
+            columns = nameList("column name");
+        }
+        expectKeyword("FROM");
+        String tableName = name("table name");
+        Condition where = null;
+        if(acceptKeyword("WHERE")) {
+            where = condition();
+        }
+        String orderBy = null;
+        boolean descending = false;
+        if(acceptKeyword("ORDER")) {
+            expectKeyword("BY");
+            orderBy = name("column name");
+            if(acceptKeyword("DESC")) {
+                descending = true;
+            } else {
+                acceptKeyword("ASC");
+            }
+        }
+        return new Statement.Select(tableName, columns, where, orderBy, descending);
+    }
+
+    // UPDATE <name> SET <column> = <value>, ... WHERE <condition>
+    private Statement update() {
+        String tableName = name("table name");
+        expectKeyword("SET");
+        Map<String, Literal> assignments = new LinkedHashMap<>();
+        do {
+            String column = name("column name");
+            expectSymbol("=");
+            assignments.put(column.toLowerCase(), literal());
+        } while(acceptSymbol(","));
+        expectKeyword("WHERE");
+        return new Statement.Update(tableName, assignments, condition());
+    }
+
+    // DELETE FROM <name> WHERE <condition>
+    private Statement delete() {
+        expectKeyword("FROM");
+        String tableName = name("table name");
+        expectKeyword("WHERE");
+        return new Statement.Delete(tableName, condition());
+    }
+
+    // JOIN <table> AND <table> ON <column> AND <column>
+    private Statement join() {
+        String table1 = name("table name");
+        expectKeyword("AND");
+        String table2 = name("table name");
+        expectKeyword("ON");
+        String column1 = name("column name");
+        expectKeyword("AND");
+        String column2 = name("column name");
+        return new Statement.Join(table1, table2, column1, column2);
+    }
+
+    // PREPARE <name> AS <statement with ? placeholders>
+    private Statement prepare() {
+        String name = name("statement name");
+        expectKeyword("AS");
+        parameterCount = 0;
+        Statement body = statement();
+        Statement prepared = new Statement.Prepare(name, body, parameterCount);
+        parameterCount = -1;
+        return prepared;
+    }
+
+    // EXECUTE <name> [ ( <value>, ... ) ]
+    private Statement execute() {
+        String name = name("statement name");
+        List<Literal> args = new ArrayList<>();
+        if(acceptSymbol("(")) {
+            if(!acceptSymbol(")")) {
+                do {
+                    args.add(literal());
+                } while(acceptSymbol(","));
+                expectSymbol(")");
+            }
+        }
+        return new Statement.Execute(name, args);
+    }
+
+    // <term> [ OR <term> ... ]
+    private Condition condition() {
+        List<Condition> terms = new ArrayList<>();
+        do {
+            terms.add(conjunction());
+        } while(acceptKeyword("OR"));
+        return terms.size() == 1 ? terms.get(0) : new Condition.Or(terms);
+    }
+
+    // <factor> [ AND <factor> ... ]
+    private Condition conjunction() {
+        List<Condition> factors = new ArrayList<>();
+        do {
+            factors.add(factor());
+        } while(acceptKeyword("AND"));
+        return factors.size() == 1 ? factors.get(0) : new Condition.And(factors);
+    }
+
+    // ( <condition> ) | <column> ==|!=|>|<|>=|<=|LIKE <value>
+    private Condition factor() {
+        if(acceptSymbol("(")) {
+            Condition inner = condition();
+            expectSymbol(")");
+            return inner;
+        }
+        String column = name("column name");
+        Token token = next();
+        String operator;
+        if(token.isKeyword("LIKE")) {
+            operator = "LIKE";
+        } else if(token.kind == Token.Kind.SYMBOL && COMPARATORS.contains(token.text)) {
+            operator = token.text;
+        } else {
+            throw syntaxError("a comparison operator", token);
+        }
+        return new Condition.Comparison(column, operator, literal());
+    }
+
+    private Literal literal() {
+        Token token = next();
+        switch(token.kind) {
+            case STRING:
+                return new Literal(token.text, true);
+            case WORD:
+            case NUMBER:
+                return new Literal(token.text, false);
+            case SYMBOL:
+                if(token.isSymbol("?")) {
+                    if(parameterCount < 0) {
+                        throw new RuntimeException("? placeholders can only be used in PREPARE");
+                    }
+                    return Literal.parameter(parameterCount++);
+                }
+                throw syntaxError("a value", token);
+            default:
+                throw syntaxError("a value", token);
+        }
+    }
+
+    private List<String> nameList(String what) {
+        List<String> names = new ArrayList<>();
+        do {
+            names.add(name(what));
+        } while(acceptSymbol(","));
+        return names;
+    }
+
+    private String name(String what) {
+        Token token = next();
+        if(token.kind != Token.Kind.WORD) {
+            throw syntaxError(what, token);
+        }
+        return token.text;
+    }
+
+    private Token next() {
+        Token token = tokens.get(pos);
+        if(token.kind != Token.Kind.END) {
+            pos++;
+        }
+        return token;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if(tokens.get(pos).isKeyword(keyword)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if(tokens.get(pos).isSymbol(symbol)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectKeyword(String keyword) {
+        if(!acceptKeyword(keyword)) {
+            throw syntaxError(keyword, tokens.get(pos));
+        }
+    }
+
+    private void expectSymbol(String symbol) {
+        if(!acceptSymbol(symbol)) {
+            throw syntaxError("'" + symbol + "'", tokens.get(pos));
+        }
+    }
+
+    private void expectEnd() {
+        Token token = tokens.get(pos);
+        if(token.kind != Token.Kind.END) {
+            throw syntaxError("end of command", token);
+        }
+    }
+
+    private RuntimeException syntaxError(String expected, Token found) {
+        return new RuntimeException("Command not recognized or invalid syntax: expected "
+                + expected + " but found " + found.describe());
+    }
+}
@@ -0,0 +1,32 @@
+package edu.uob;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache from raw command text to its parsed {@link Statement},
+ * so the same command string sent over and over is only lexed and parsed once.
+ */
+class PlanCache {
+    private final Map<String, Statement> plans;
+
+    PlanCache(int capacity) {
+        // An access-ordered LinkedHashMap evicts the least recently used entry once it's full
+        this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized Statement get(String command) {
+        return plans.get(command);
+    }
+
+    synchronized void put(String command, Statement statement) {
+        plans.put(command, statement);
+    }
+}
@@ -0,0 +1,56 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that command replies are streamed through. Whitespace is held back until some
+ * other character follows it, so whatever is still pending when the reply ends is simply
+ * dropped. A result written row by row therefore ends exactly like the old
+ * {@code StringBuilder.toString().trim()} replies did, without ever building the whole string.
+ */
+class ReplyWriter extends Writer {
+    private final Writer out;
+    private final StringBuilder pendingWhitespace = new StringBuilder();
+
+    ReplyWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int runStart = off;
+        for(int i = off; i < end; i++) {
+            if(cbuf[i] <= ' ') {
+                // Pass on the text before this whitespace, then start holding back
+                out.write(cbuf, runStart, i - runStart);
+                pendingWhitespace.append(cbuf[i]);
+                runStart = i + 1;
+            }
+            else if(pendingWhitespace.length() > 0) {
+                out.append(pendingWhitespace);
+                pendingWhitespace.setLength(0);
+            }
+        }
+        out.write(cbuf, runStart, end - runStart);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        char[] chars = new char[len];
+        str.getChars(off, off + len, chars, 0);
+        write(chars, 0, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Doesn't close the connection's writer, just drops the trailing whitespace of this reply
+    @Override
+    public void close() {
+        pendingWhitespace.setLength(0);
+    }
+}
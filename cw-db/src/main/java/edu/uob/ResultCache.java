@@ -0,0 +1,211 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replies to recent SELECTs, so a query sent over and over is only run again once its table has
+ * changed. Entries are found by the query in normalised form, see key(), and are kept within a
+ * memory budget, evicting the least recently used first.
+ *
+ * Statements changing a table drop its entries straight away with invalidate(). Each entry also
+ * remembers the table's version when it was read, which catches the rest: a COMMIT or ROLLBACK
+ * changing what other sessions see, or a query that was still writing its result meanwhile.
+ */
+class ResultCache {
+    // Rough size of an entry besides its text: the map node, the Entry and the strings' headers
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    // A reply bigger than this isn't kept, it would push out too much else
+    private final long maxEntryBytes;
+    // An access-ordered LinkedHashMap is in least recently used order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Table, Set<String>> keysByTable = new IdentityHashMap<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    // The budget comes from -Ddb.resultCacheBytes, 0 turns the cache off
+    static ResultCache fromSystemProperties() {
+        return new ResultCache(Long.parseLong(System.getProperty("db.resultCacheBytes", String.valueOf(16L * 1024 * 1024))));
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // Keywords, spacing and the case of names that aren't echoed in the reply don't matter.
+    // The WHERE clause comes last, so a quoted value in it can't be mistaken for another part.
+    static String key(String dbName, String tableName, List<String> colNames, Condition where,
+                      String orderBy, boolean descending) {
+        StringBuilder key = new StringBuilder();
+        key.append(dbName.toLowerCase()).append('\n').append(tableName.toLowerCase()).append('\n');
+        key.append(colNames == null ? "*" : String.join(",", colNames)).append('\n');
+        if(orderBy != null) {
+            key.append(orderBy.toLowerCase()).append(descending ? " DESC" : " ASC");
+        }
+        key.append('\n');
+        if(where != null) {
+            key.append(where);
+        }
+        return key.toString();
+    }
+
+    // The reply for key if one was kept for the table as it is now, otherwise null
+    synchronized String get(String key, Table table) {
+        Entry entry = entries.get(key);
+        if(entry != null && (entry.table != table || entry.version != table.version)) {
+            remove(key);
+            invalidations++;
+            entry = null;
+        }
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.reply;
+    }
+
+    // Keeps the reply to key, which was read from the table at the given version
+    synchronized void put(String key, Table table, long version, String reply) {
+        long size = ENTRY_OVERHEAD + 2L * (key.length() + reply.length());
+        if(size > maxEntryBytes || version != table.version || table.dropped) {
+            // Too big, or the table has changed while the result was being written
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(table, version, reply, size));
+        keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+        bytes += size;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while(bytes > maxBytes) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            forget(evicted.getKey(), evicted.getValue());
+            evictions++;
+        }
+    }
+
+    // Drops every reply read from the table, called by the statements changing it
+    synchronized void invalidate(Table table) {
+        Set<String> keys = keysByTable.remove(table);
+        if(keys == null) {
+            return;
+        }
+        for(String key : keys) {
+            bytes -= entries.remove(key).size;
+        }
+        invalidations += keys.size();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry != null) {
+            forget(key, entry);
+        }
+    }
+
+    // Takes an entry that has been removed out of the accounting
+    private void forget(String key, Entry entry) {
+        bytes -= entry.size;
+        Set<String> keys = keysByTable.get(entry.table);
+        keys.remove(key);
+        if(keys.isEmpty()) {
+            keysByTable.remove(entry.table);
+        }
+    }
+
+    // Writer for a reply that is to be cached once it's complete
+    Capture capture(Writer out) {
+        return new Capture(out);
+    }
+
+    // One row with the counters, in the same form as a query result
+    synchronized String stats() {
+        long lookups = hits + misses;
+        String hitRate = String.format(Locale.ROOT, "%.2f", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return "[OK]\nentries\tbytes\thits\tmisses\thitRate\tevictions\tinvalidations\t\n"
+                + entries.size() + "\t" + bytes + "\t" + hits + "\t" + misses + "\t" + hitRate + "\t"
+                + evictions + "\t" + invalidations + "\t";
+    }
+
+    private static class Entry {
+        final Table table;
+        final long version;
+        final String reply;
+        final long size;
+
+        Entry(Table table, long version, String reply, long size) {
+            this.table = table;
+            this.version = version;
+            this.reply = reply;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Passes a reply on to out and keeps a copy of it, unless it gets too big to be cached.
+     */
+    class Capture extends Writer {
+        private final Writer out;
+        private StringBuilder text = new StringBuilder();
+
+        Capture(Writer out) {
+            this.out = out;
+        }
+
+        // The reply written so far, or null if it's too big
+        String text() {
+            return text == null ? null : text.toString();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if(keeps(len)) {
+                text.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            if(keeps(len)) {
+                text.append(str, off, off + len);
+            }
+        }
+
+        private boolean keeps(int len) {
+            if(text != null && 2L * (text.length() + len) > maxEntryBytes) {
+                text = null;
+            }
+            return text != null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
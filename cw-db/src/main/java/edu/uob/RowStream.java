@@ -0,0 +1,55 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The rows of a SELECT or JOIN reply, formatted a batch at a time. The first batch is formatted
+ * while the query still holds its table locks; if there is more, the query moves the stream onto
+ * snapshots of its tables before it releases them. Whoever sends the reply then calls writeMore()
+ * as fast as its client takes the text, so a client that stops reading holds neither a table lock
+ * nor a thread.
+ */
+abstract class RowStream {
+    // Rows formatted per batch
+    static final int BATCH_ROWS = 1024;
+
+    private final Writer out;
+    private final StringBuilder batch = new StringBuilder();
+    private boolean more = true;
+    private boolean done = false;
+
+    RowStream(Writer out) {
+        this.out = out;
+    }
+
+    // Appends the next batch of the reply to text, returns false once the reply is complete
+    abstract boolean formatNext(StringBuilder text);
+
+    // Called once the whole reply has been written
+    void finished() {
+    }
+
+    // Formats the next batch unless one is waiting already, returns whether more follows it
+    boolean prepare() {
+        if(more && batch.length() == 0) {
+            more = formatNext(batch);
+        }
+        return more;
+    }
+
+    // Writes the next batch to the query's writer, returns false once the whole reply is written
+    boolean writeMore() throws IOException {
+        if(done) {
+            return false;
+        }
+        prepare();
+        out.append(batch);
+        batch.setLength(0);
+        if(!more) {
+            done = true;
+            finished();
+        }
+        return more;
+    }
+}
@@ -0,0 +1,430 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking front end for the wire protocol. A single selector thread owns every socket:
+ * it splits the incoming bytes into newline-terminated commands, hands them to a worker pool
+ * that runs {@link DBServer#startCommand(Session, String, Writer)}, and writes the replies (each
+ * followed by the END_OF_TRANSMISSION marker) back out as the sockets become writable.
+ * Idle connections therefore cost a selection key and a few bytes, not a blocked thread.
+ * A client that doesn't read its replies doesn't hold a worker either: once enough is queued
+ * for it, its worker puts the rest of the reply aside until the socket has taken most of it.
+ */
+class SelectorServer {
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // A worker stops producing output for a slow client once this much is queued for it
+    private static final int MAX_QUEUED_BYTES = 4 * IO_BUFFER_SIZE;
+    // Longest command line accepted, more than that and the connection is closed. Bigger inputs
+    // belong in a file for LOAD DATA.
+    static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private final DBServer server;
+    private final ExecutorService workers;
+    // Both buffers are only touched by the selector thread, so one pair serves every connection
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    // Connections that have new output queued by a worker and need OP_WRITE switched on
+    private final Queue<Connection> wantWrite = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    SelectorServer(DBServer server) {
+        this.server = server;
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    void listenOn(int portNumber) throws IOException {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server listening on port " + portNumber + " (non-blocking)");
+
+            while (!Thread.interrupted()) {
+                selector.select();
+                enableWrites();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Connection closed with an IO error: " + e.getMessage());
+                        close(key);
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.replies = new ChunkWriter(connection);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        System.out.println("Connection established: " + channel.getRemoteAddress());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        int count = connection.channel.read(readBuffer);
+        if (count < 0) {
+            close(key);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                submit(connection, connection.takeLine());
+            } else if (!connection.appendToLine(b)) {
+                // Nothing more is read; the connection closes once the replies so far and the error are sent
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                connection.line = null;
+                reject(connection);
+                return;
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        boolean resume = false;
+        synchronized (connection) {
+            // Copy as much queued output as fits into the direct buffer without consuming it yet
+            writeBuffer.clear();
+            for (ByteBuffer pending : connection.output) {
+                ByteBuffer view = pending.duplicate();
+                if (view.remaining() > writeBuffer.remaining()) {
+                    view.limit(view.position() + writeBuffer.remaining());
+                }
+                writeBuffer.put(view);
+                if (!writeBuffer.hasRemaining()) {
+                    break;
+                }
+            }
+            writeBuffer.flip();
+            int written = connection.channel.write(writeBuffer);
+
+            // Now drop whatever actually reached the socket
+            connection.queuedBytes -= written;
+            while (written > 0) {
+                ByteBuffer head = connection.output.peek();
+                int step = Math.min(written, head.remaining());
+                head.position(head.position() + step);
+                written -= step;
+                if (!head.hasRemaining()) {
+                    connection.output.poll();
+                }
+            }
+            if (connection.output.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (connection.closeWhenWritten) {
+                    close(key);
+                    return;
+                }
+            }
+            // A worker carries on with a parked connection once the client has taken most of its output
+            if (connection.parked && connection.queuedBytes <= MAX_QUEUED_BYTES / 2) {
+                connection.parked = false;
+                resume = true;
+            }
+        }
+        if (resume) {
+            workers.execute(() -> drain(connection));
+        }
+    }
+
+    private void enableWrites() {
+        Connection connection;
+        while ((connection = wantWrite.poll()) != null) {
+            SelectionKey key = connection.key;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close connection: " + e.getMessage());
+        }
+        // The session ends once its queued commands have run, by the worker running them if there is one.
+        // A parked connection gets its worker back to do that.
+        boolean resume;
+        synchronized (connection) {
+            connection.closed = true;
+            if (connection.running && !connection.parked) {
+                return;
+            }
+            resume = connection.parked;
+            connection.parked = false;
+        }
+        workers.execute(resume ? () -> drain(connection) : () -> server.endSession(connection.session));
+    }
+
+    // Commands from one connection run strictly in order, so at most one worker drains a connection at a time
+    private void submit(Connection connection, String command) {
+        System.out.println("Received message: " + command);
+        synchronized (connection) {
+            connection.commands.add(command);
+            if (connection.running) {
+                return;
+            }
+            connection.running = true;
+        }
+        workers.execute(() -> drain(connection));
+    }
+
+    // Has the worker answer a command line that got too long with an error, after the commands before it
+    private void reject(Connection connection) {
+        synchronized (connection) {
+            connection.lineTooLong = true;
+            if (connection.running) {
+                return;
+            }
+            connection.running = true;
+        }
+        workers.execute(() -> drain(connection));
+    }
+
+    private void drain(Connection connection) {
+        // Replies for a pipelined batch are collected and handed to the selector together,
+        // large results go out in IO_BUFFER_SIZE chunks while they are still being produced
+        ChunkWriter replies = connection.replies;
+        while (true) {
+            synchronized (connection) {
+                if (connection.closed) {
+                    // Nobody is left to read the rest of the reply
+                    connection.rows = null;
+                } else if (connection.queuedBytes > MAX_QUEUED_BYTES) {
+                    // Give the worker up until the selector thread has written most of it, see write()
+                    connection.parked = true;
+                    return;
+                }
+            }
+            if (connection.rows != null) {
+                try {
+                    if (!server.writeMore(connection.rows, connection.reply)) {
+                        endReply(connection);
+                    }
+                } catch (IOException e) {
+                    // ChunkWriter only queues in memory, so this is not expected
+                    System.err.println("Failed to build reply: " + e.getMessage());
+                    endReply(connection);
+                }
+                continue;
+            }
+            String statement = connection.statements.poll();
+            if (statement != null) {
+                connection.reply = new ReplyWriter(replies);
+                try {
+                    connection.rows = server.startCommand(connection.session, statement, connection.reply);
+                } catch (IOException e) {
+                    System.err.println("Failed to build reply: " + e.getMessage());
+                }
+                if (connection.rows == null) {
+                    endReply(connection);
+                }
+                continue;
+            }
+            String command;
+            boolean tooLong;
+            synchronized (connection) {
+                command = connection.commands.poll();
+                tooLong = command == null && connection.lineTooLong;
+                if (tooLong) {
+                    connection.lineTooLong = false;
+                }
+            }
+            if (command != null) {
+                connection.statements.addAll(DBServer.splitStatements(command));
+                continue;
+            }
+            if (tooLong) {
+                replies.append("[ERROR] Command is longer than " + MAX_LINE_BYTES + " bytes, closing the connection")
+                        .append('\n').append(DBServer.END_OF_TRANSMISSION).append('\n');
+                replies.flush();
+                synchronized (connection) {
+                    connection.closeWhenWritten = true;
+                }
+                // The selector thread closes the connection once it's written, or now if it already is
+                wantWrite.add(connection);
+                selector.wakeup();
+            }
+            // Hand the replies over before letting another worker pick up this connection
+            replies.flush();
+            boolean done;
+            boolean closed;
+            synchronized (connection) {
+                done = connection.commands.isEmpty();
+                closed = connection.closed;
+                if (done) {
+                    connection.running = false;
+                }
+            }
+            if (done) {
+                if (closed) {
+                    server.endSession(connection.session);
+                }
+                return;
+            }
+        }
+    }
+
+    private void endReply(Connection connection) {
+        connection.reply.close();
+        connection.reply = null;
+        connection.rows = null;
+        connection.replies.append('\n').append(DBServer.END_OF_TRANSMISSION).append('\n');
+    }
+
+    // Collects reply text for one connection and queues it for the selector thread in chunks
+    private class ChunkWriter extends Writer {
+        private final Connection connection;
+        private final StringBuilder chunk = new StringBuilder();
+
+        ChunkWriter(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chunk.append(cbuf, off, len);
+            if (chunk.length() >= IO_BUFFER_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public ChunkWriter append(char c) {
+            chunk.append(c);
+            return this;
+        }
+
+        @Override
+        public ChunkWriter append(CharSequence text) {
+            chunk.append(text);
+            if (chunk.length() >= IO_BUFFER_SIZE) {
+                flush();
+            }
+            return this;
+        }
+
+        @Override
+        public void flush() {
+            if (chunk.length() == 0) {
+                return;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(chunk.toString().getBytes(StandardCharsets.UTF_8));
+            chunk.setLength(0);
+            synchronized (connection) {
+                if (connection.closed) {
+                    // Nobody is left to read it
+                    return;
+                }
+                connection.output.add(bytes);
+                connection.queuedBytes += bytes.remaining();
+            }
+            wantWrite.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final Session session = new Session();
+        final Queue<String> commands = new ArrayDeque<>();
+        final Queue<ByteBuffer> output = new ArrayDeque<>();
+        // Bytes in output that have not been written to the socket yet
+        long queuedBytes = 0;
+        SelectionKey key;
+        boolean running = false;
+        // Set while the worker running the connection has given it up for the client to catch up
+        boolean parked = false;
+        // Only touched by the worker running the connection: the statements of the command line it's
+        // on, the reply it's writing and the rows of that reply still to come
+        final Queue<String> statements = new ArrayDeque<>();
+        ChunkWriter replies;
+        ReplyWriter reply;
+        RowStream rows;
+        // Set by the selector thread once the client has gone
+        boolean closed = false;
+        // Set by the selector thread when a command line goes past MAX_LINE_BYTES, and by the
+        // worker once it has queued the error reply, after which the connection is closed
+        boolean lineTooLong = false;
+        boolean closeWhenWritten = false;
+        // Bytes of the command line that has not seen its newline yet
+        byte[] line = new byte[256];
+        int lineLength = 0;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Returns false, keeping nothing, once the line would be longer than MAX_LINE_BYTES
+        boolean appendToLine(byte b) {
+            if (lineLength == MAX_LINE_BYTES) {
+                return false;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+            }
+            line[lineLength++] = b;
+            return true;
+        }
+
+        String takeLine() {
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            lineLength = 0;
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
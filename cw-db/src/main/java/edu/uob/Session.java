@@ -0,0 +1,26 @@
+package edu.uob;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-connection state. Every client gets its own session so that one client's
+ * USE does not change the database another client is working on.
+ */
+public class Session {
+    String currentDatabaseName = null;
+    // Statements set up with PREPARE, by lower-case name
+    final Map<String, Statement.Prepare> preparedStatements = new HashMap<>();
+    // Set by a statement that changed data: the reply has to wait until the log is durable up to here
+    ChangeLog uncommittedLog = null;
+    long uncommittedPosition = 0;
+    // Set by a query to the rows of its reply that are still to be written, see DBServer.startCommand
+    RowStream unwrittenRows = null;
+    // Set between BEGIN and COMMIT or ROLLBACK
+    Transaction transaction = null;
+
+    void mustCommit(ChangeLog log, long position) {
+        uncommittedLog = log;
+        uncommittedPosition = position;
+    }
+}
@@ -0,0 +1,50 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+/**
+ * Ascending list of row slots without boxing, used by {@link HashIndex} and {@link HashJoin}.
+ */
+class SlotList {
+    private int[] slots = new int[4];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    int get(int i) {
+        return slots[i];
+    }
+
+    // Slots are usually added in table order, anything else is inserted in its place
+    void add(int slot) {
+        if(size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+        }
+        int at = size;
+        if(size > 0 && slots[size - 1] > slot) {
+            at = Arrays.binarySearch(slots, 0, size, slot);
+            if(at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            System.arraycopy(slots, at, slots, at + 1, size - at);
+        }
+        slots[at] = slot;
+        size++;
+    }
+
+    void remove(int slot) {
+        int at = Arrays.binarySearch(slots, 0, size, slot);
+        if(at < 0) {
+            return;
+        }
+        System.arraycopy(slots, at + 1, slots, at, size - at - 1);
+        size--;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(slots, size);
+    }
+}
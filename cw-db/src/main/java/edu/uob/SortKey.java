@@ -0,0 +1,60 @@
+package edu.uob;
+
+/**
+ * A cell value in the order used by ORDER BY and by B+tree indexes: numbers come first, by value
+ * (65 and 65.0 are then told apart by their text), followed by every other value in text order.
+ */
+final class SortKey implements Comparable<SortKey> {
+    final String text;
+    final boolean number;
+    private final boolean integer;
+    private final long longValue;
+    private final double doubleValue;
+
+    private SortKey(String text) {
+        this.text = text;
+        ValueType type = ValueType.of(text);
+        this.number = type.isNumber();
+        this.integer = type == ValueType.INTEGER;
+        this.longValue = integer ? Long.parseLong(text) : 0;
+        this.doubleValue = number ? Double.parseDouble(text) : 0;
+    }
+
+    static SortKey of(String text) {
+        return new SortKey(text);
+    }
+
+    @Override
+    public int compareTo(SortKey other) {
+        if(number != other.number) {
+            return number ? -1 : 1;
+        }
+        if(number) {
+            int byValue = compareNumber(other);
+            if(byValue != 0) {
+                return byValue;
+            }
+        }
+        return text.compareTo(other.text);
+    }
+
+    // Compares the numeric values only, both keys have to be numbers
+    int compareNumber(SortKey other) {
+        if(integer && other.integer) {
+            return Long.compare(longValue, other.longValue);
+        }
+        double a = integer ? longValue : doubleValue;
+        double b = other.integer ? other.longValue : other.doubleValue;
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SortKey && ((SortKey) o).text.equals(text);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+}
@@ -0,0 +1,262 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed form of a command, produced by {@link Parser} and run by {@link DBServer}.
+ * Statements are never modified once parsed, so they can be cached and shared between sessions.
+ */
+abstract class Statement {
+
+    // Returns this statement with its ? placeholders replaced by args
+    Statement bind(List<Literal> args) {
+        return this;
+    }
+
+    private static List<Literal> bindAll(List<Literal> literals, List<Literal> args) {
+        List<Literal> bound = new ArrayList<>();
+        for(Literal literal : literals) {
+            bound.add(literal.bind(args));
+        }
+        return bound;
+    }
+
+    private static Condition bindCondition(Condition where, List<Literal> args) {
+        return where == null ? null : where.bind(args);
+    }
+
+    static class Use extends Statement {
+        final String databaseName;
+
+        Use(String databaseName) {
+            this.databaseName = databaseName;
+        }
+    }
+
+    // Writes the changed tables of every database to disk and empties the change logs
+    static class Checkpoint extends Statement {
+    }
+
+    // Reports how well the SELECT result cache is doing
+    static class ShowCache extends Statement {
+    }
+
+    static class Begin extends Statement {
+    }
+
+    static class Commit extends Statement {
+    }
+
+    static class Rollback extends Statement {
+    }
+
+    static class CreateDatabase extends Statement {
+        final String databaseName;
+
+        CreateDatabase(String databaseName) {
+            this.databaseName = databaseName;
+        }
+    }
+
+    static class CreateTable extends Statement {
+        final String tableName;
+        final List<String> columns;
+
+        CreateTable(String tableName, List<String> columns) {
+            this.tableName = tableName;
+            this.columns = columns;
+        }
+    }
+
+    static class DropDatabase extends Statement {
+        final String databaseName;
+
+        DropDatabase(String databaseName) {
+            this.databaseName = databaseName;
+        }
+    }
+
+    static class DropTable extends Statement {
+        final String tableName;
+
+        DropTable(String tableName) {
+            this.tableName = tableName;
+        }
+    }
+
+    static class AlterTable extends Statement {
+        final String tableName;
+        // "ADD" or "DROP"
+        final String action;
+        final String columnName;
+
+        AlterTable(String tableName, String action, String columnName) {
+            this.tableName = tableName;
+            this.action = action;
+            this.columnName = columnName;
+        }
+    }
+
+    static class Insert extends Statement {
+        final String tableName;
+        // One list of values per row inserted
+        final List<List<Literal>> rows;
+
+        Insert(String tableName, List<List<Literal>> rows) {
+            this.tableName = tableName;
+            this.rows = rows;
+        }
+
+        @Override
+        Statement bind(List<Literal> args) {
+            List<List<Literal>> bound = new ArrayList<>();
+            for(List<Literal> values : rows) {
+                bound.add(bindAll(values, args));
+            }
+            return new Insert(tableName, bound);
+        }
+    }
+
+    // Inserts the rows of a CSV or TSV file on the server's disk
+    static class Load extends Statement {
+        final String path;
+        final String tableName;
+
+        Load(String path, String tableName) {
+            this.path = path;
+            this.tableName = tableName;
+        }
+    }
+
+    static class Select extends Statement {
+        final String tableName;
+        // null for SELECT *
+        final List<String> columns;
+        // null when there is no WHERE clause
+        final Condition where;
+        // null when there is no ORDER BY
+        final String orderBy;
+        final boolean descending;
+
+        Select(String tableName, List<String> columns, Condition where, String orderBy, boolean descending) {
+            this.tableName = tableName;
+            this.columns = columns;
+            this.where = where;
+            this.orderBy = orderBy;
+            this.descending = descending;
+        }
+
+        @Override
+        Statement bind(List<Literal> args) {
+            return new Select(tableName, columns, bindCondition(where, args), orderBy, descending);
+        }
+    }
+
+    static class Update extends Statement {
+        final String tableName;
+        // Column name (lower case) to new value, in the order they were written
+        final Map<String, Literal> assignments;
+        final Condition where;
+
+        Update(String tableName, Map<String, Literal> assignments, Condition where) {
+            this.tableName = tableName;
+            this.assignments = assignments;
+            this.where = where;
+        }
+
+        @Override
+        Statement bind(List<Literal> args) {
+            Map<String, Literal> bound = new LinkedHashMap<>();
+            for(Map.Entry<String, Literal> e : assignments.entrySet()) {
+                bound.put(e.getKey(), e.getValue().bind(args));
+            }
+            return new Update(tableName, bound, bindCondition(where, args));
+        }
+    }
+
+    static class Delete extends Statement {
+        final String tableName;
+        final Condition where;
+
+        Delete(String tableName, Condition where) {
+            this.tableName = tableName;
+            this.where = where;
+        }
+
+        @Override
+        Statement bind(List<Literal> args) {
+            return new Delete(tableName, bindCondition(where, args));
+        }
+    }
+
+    static class Join extends Statement {
+        final String table1;
+        final String table2;
+        final String column1;
+        final String column2;
+
+        Join(String table1, String table2, String column1, String column2) {
+            this.table1 = table1;
+            this.table2 = table2;
+            this.column1 = column1;
+            this.column2 = column2;
+        }
+    }
+
+    static class Prepare extends Statement {
+        final String name;
+        final Statement body;
+        final int parameterCount;
+
+        Prepare(String name, Statement body, int parameterCount) {
+            this.name = name;
+            this.body = body;
+            this.parameterCount = parameterCount;
+        }
+    }
+
+    static class Execute extends Statement {
+        final String name;
+        final List<Literal> args;
+
+        Execute(String name, List<Literal> args) {
+            this.name = name;
+            this.args = args;
+        }
+    }
+
+    static class CreateIndex extends Statement {
+        final String tableName;
+        final String columnName;
+        // USING BTREE rather than the default hash index
+        final boolean ordered;
+
+        CreateIndex(String tableName, String columnName, boolean ordered) {
+            this.tableName = tableName;
+            this.columnName = columnName;
+            this.ordered = ordered;
+        }
+    }
+
+    static class DropIndex extends Statement {
+        final String tableName;
+        final String columnName;
+
+        DropIndex(String tableName, String columnName) {
+            this.tableName = tableName;
+            this.columnName = columnName;
+        }
+    }
+
+    // Closes the gaps deleted rows have left in a table's storage
+    static class Vacuum extends Statement {
+        final String tableName;
+
+        Vacuum(String tableName) {
+            this.tableName = tableName;
+        }
+    }
+}
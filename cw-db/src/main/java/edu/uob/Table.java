@@ -1,17 +1,53 @@
 package edu.uob;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 
 
 public class Table {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int SELECTIVITY_SAMPLES = 32;
+    // Queries that visit every row of a table at least this big read a snapshot() instead of holding the lock
+    static final int SNAPSHOT_ROWS = Integer.parseInt(System.getProperty("db.snapshotRows", "10000"));
+
     final String name;
     final List<String> columns;
-    final List<Row> rows = new ArrayList<>();
+    // Column-wise storage: row slot i holds ids[i] and cells.get(c).get(i) for user column c.
+    // Slots are in id order. A delete only marks the slot in deleted, the gaps are closed by vacuum().
+    int[] ids = new int[INITIAL_CAPACITY];
+    final List<Column> cells = new ArrayList<>();
+    int rowCount = 0;
+    final BitSet deleted = new BitSet();
+    int deletedCount = 0;
+    // Indexes by lower-case column name, kept up to date by every change to the rows
+    final Map<String, Index> indexes = new HashMap<>();
     int nextId = 1;
+    // Bumped by every change to the rows, columns or indexes. The table is dirty while this differs
+    // from savedVersion, the version last written to its file, so new tables start out dirty.
+    long version = 1;
+    long savedVersion = 0;
+    // Queries hold the read lock, anything that changes the table the write lock (see Database.lockTable)
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Set under the write lock by DROP TABLE, for statements that were waiting for the lock meanwhile
+    boolean dropped = false;
+    // While a transaction has uncommitted changes to the table: that transaction, and a snapshot of
+    // the table from before them, which other sessions read meanwhile and ROLLBACK puts back
+    Transaction owner = null;
+    Table committed = null;
 
     Table(String name, List<String> userDefinedColumns) {
         this.name = name;
@@ -20,16 +56,10 @@ public class Table {
         this.columns.add("id");
         for(String c : userDefinedColumns) {
             this.columns.add(c);
+            this.cells.add(new Column());
         }
     }
 
-    Table(String name, List<String> loadedCols, boolean fromFile) {
-        this.name = name;
-        this.columns = new ArrayList<>();
-        this.columns.add("id");
-        this.columns.addAll(loadedCols);
-    }
-
     // Returns the list of column names
     List<String> getColumns(){
         return columns;
@@ -37,55 +67,468 @@ public class Table {
 
     // Checks if a column exists in the table
     boolean hasColumn(String colLower){
-        for(String c : columns) {
-            if(c.equalsIgnoreCase(colLower)) {
-                return true;
+        return ordinal(colLower) >= 0;
+    }
+
+    // Position of a column in getColumns() (0 is id), or -1 if there is no such column.
+    // Queries resolve their column names once and then read cells by ordinal.
+    int ordinal(String colName) {
+        for(int i=0; i<columns.size(); i++) {
+            if(columns.get(i).equalsIgnoreCase(colName)) {
+                return i;
             }
         }
-        return false;
+        return -1;
+    }
+
+    boolean isLive(int slot) {
+        return !deleted.get(slot);
+    }
+
+    // Rows in the table, not counting deleted ones still taking up a slot
+    int liveCount() {
+        return rowCount - deletedCount;
+    }
+
+    boolean isDirty() {
+        return version != savedVersion;
+    }
+
+    // Reserves count consecutive ids at once and returns the first
+    int generateNextIds(int count) {
+        int first = nextId;
+        nextId += count;
+        return first;
+    }
+
+    // The value in the given row slot and column ordinal, "" for a column that doesn't exist
+    String cellValue(int slot, int ordinal) {
+        if(ordinal == 0) {
+            return String.valueOf(ids[slot]);
+        }
+        if(ordinal < 0) {
+            return "";
+        }
+        return cells.get(ordinal - 1).get(slot);
+    }
+
+    void createIndex(String colName) {
+        createIndex(colName, false);
+    }
+
+    // ordered picks a B+tree index over a hash index
+    void createIndex(String colName, boolean ordered) {
+        version++;
+        Index index = ordered ? new BTreeIndex(colName.toLowerCase()) : new HashIndex(colName.toLowerCase());
+        fillIndex(index);
+        indexes.put(index.column, index);
+    }
+
+    private void fillIndex(Index index) {
+        int ordinal = ordinal(index.column);
+        for(int slot=0; slot<rowCount; slot++) {
+            if(isLive(slot)) {
+                index.add(cellValue(slot, ordinal), slot);
+            }
+        }
+    }
+
+    void dropIndex(String colName) {
+        version++;
+        indexes.remove(colName.toLowerCase());
+    }
+
+    boolean hasIndex(String colName) {
+        return indexes.containsKey(colName.toLowerCase());
+    }
+
+    // Adds a row with the given id, values are for the user-defined columns in table order.
+    // Returns the row's slot.
+    int insertRow(int id, List<String> values) {
+        version++;
+        if(rowCount == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        int slot = rowCount++;
+        ids[slot] = id;
+        for(int c=0; c<cells.size(); c++){
+            cells.get(c).add(values.get(c));
+        }
+        if(id >= nextId) {
+            nextId = id + 1;
+        }
+        for(Index index : indexes.values()) {
+            index.add(cellValue(slot, ordinal(index.column)), slot);
+        }
+        return slot;
+    }
+
+    // Adds rows with consecutive ids from firstId, like insertRow for each of them but growing the
+    // table once and filling it a column at a time
+    void insertRows(int firstId, List<List<String>> rows) {
+        version++;
+        int first = rowCount;
+        int end = rowCount + rows.size();
+        if(end > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(end, ids.length * 2));
+        }
+        for(int slot=first; slot<end; slot++) {
+            ids[slot] = firstId + slot - first;
+        }
+        for(int c=0; c<cells.size(); c++) {
+            Column column = cells.get(c);
+            for(List<String> values : rows) {
+                column.add(values.get(c));
+            }
+        }
+        rowCount = end;
+        if(firstId + rows.size() > nextId) {
+            nextId = firstId + rows.size();
+        }
+        for(Index index : indexes.values()) {
+            int ordinal = ordinal(index.column);
+            for(int slot=first; slot<end; slot++) {
+                index.add(cellValue(slot, ordinal), slot);
+            }
+        }
+    }
+
+    void updateRows(int[] slots, Map<String, String> newValues) {
+        version++;
+        for(Map.Entry<String, String> e : newValues.entrySet()) {
+            int ordinal = ordinal(e.getKey());
+            Column column = cells.get(ordinal - 1);
+            Index index = indexes.get(e.getKey().toLowerCase());
+            for(int slot : slots) {
+                if(index != null) {
+                    index.remove(column.get(slot), slot);
+                    index.add(e.getValue(), slot);
+                }
+                column.set(slot, e.getValue());
+            }
+        }
+    }
+
+    // Marks the rows in the given live slots (ascending) as deleted and takes them out of the
+    // indexes, which costs nothing for the other rows. Deleted rows at the end of the table give
+    // their slots back straight away; once half the slots are taken by deleted rows the table is vacuumed.
+    void deleteRows(int[] slots) {
+        version++;
+        for(Index index : indexes.values()) {
+            int ordinal = ordinal(index.column);
+            for(int slot : slots) {
+                index.remove(cellValue(slot, ordinal), slot);
+            }
+        }
+        for(int slot : slots) {
+            deleted.set(slot);
+        }
+        deletedCount += slots.length;
+        int live = deleted.previousClearBit(rowCount - 1) + 1;
+        if(live < rowCount) {
+            truncate(live);
+        }
+        if(deletedCount > 0 && deletedCount >= rowCount / 2) {
+            vacuum();
+        }
+    }
+
+    // Drops the slots from end on, all of which hold deleted rows
+    private void truncate(int end) {
+        int[] trailing = IntStream.range(end, rowCount).toArray();
+        for(Column column : cells) {
+            column.remove(trailing);
+        }
+        deleted.clear(end, rowCount);
+        deletedCount -= trailing.length;
+        rowCount = end;
     }
-    int generateNextId(){
-        return nextId++;
+
+    // Closes the gaps left by deleted rows. The rows keep their order but most change slot,
+    // so the indexes are rebuilt. Returns how many slots were freed.
+    int vacuum() {
+        int freed = deletedCount;
+        if(freed == 0) {
+            return 0;
+        }
+        int[] removed = deleted.stream().toArray();
+        int to = 0;
+        for(int slot=0; slot<rowCount; slot++) {
+            if(isLive(slot)) {
+                ids[to++] = ids[slot];
+            }
+        }
+        for(Column column : cells) {
+            column.remove(removed);
+        }
+        rowCount = to;
+        deleted.clear();
+        deletedCount = 0;
+        for(Index index : indexes.values()) {
+            index.clear();
+            fillIndex(index);
+        }
+        return freed;
+    }
+
+    // Slots of the rows with the given ids, ascending
+    int[] findSlots(Set<Integer> ids) {
+        int[] found = new int[ids.size()];
+        int count = 0;
+        for(int id : ids) {
+            // Slots are in id order
+            int slot = Arrays.binarySearch(this.ids, 0, rowCount, id);
+            if(slot >= 0 && isLive(slot)) {
+                found[count++] = slot;
+            }
+        }
+        found = Arrays.copyOf(found, count);
+        Arrays.sort(found);
+        return found;
+    }
+
+    // Lets every column pick its encoding again from the values it now holds
+    void reencodeColumns() {
+        for(Column column : cells) {
+            column.reencode();
+        }
     }
 
     void addColumn(String colName) {
+        version++;
         columns.add(colName);
-        for(Row r : rows) {
-            r.values.put(colName.toLowerCase(), "");
-        }
+        cells.add(Column.filled(rowCount, ""));
     }
 
     void dropColumn(String colName) {
-        for(int i=0; i<columns.size(); i++){
-            if(columns.get(i).equalsIgnoreCase(colName)) {
-                columns.remove(i);
-                break;
+        version++;
+        int ordinal = ordinal(colName);
+        if(ordinal > 0) {
+            columns.remove(ordinal);
+            cells.remove(ordinal - 1);
+        }
+        indexes.remove(colName.toLowerCase());
+    }
+
+    // A read-only copy of the table as it is now, which a query can go on reading after the read lock
+    // is released while changes carry on in the table. The columns share their segments with the table
+    // (see Column), so this only copies the ids and deleted marks; old segments are garbage collected
+    // once the last query reading them is done. A snapshot has no indexes, queries on it scan.
+    synchronized Table snapshot() {
+        Table copy = new Table(name, columns.subList(1, columns.size()));
+        copy.cells.clear();
+        for(Column column : cells) {
+            copy.cells.add(column.snapshot());
+        }
+        copy.ids = Arrays.copyOf(ids, rowCount);
+        copy.rowCount = rowCount;
+        copy.deleted.or(deleted);
+        copy.deletedCount = deletedCount;
+        copy.nextId = nextId;
+        copy.version = version;
+        copy.savedVersion = savedVersion;
+        return copy;
+    }
+
+    // The table as a session is meant to see it, i.e. without another session's uncommitted changes
+    Table visibleTo(Session session) {
+        return owner != null && owner != session.transaction ? committed : this;
+    }
+
+    // Puts back the rows from before the transaction that claimed the table and ends the claim
+    void rollback() {
+        restore(committed);
+        owner = null;
+        committed = null;
+    }
+
+    // Puts back the rows of an earlier snapshot() of this table, whose columns haven't changed since
+    void restore(Table earlier) {
+        version++;
+        ids = Arrays.copyOf(earlier.ids, Math.max(earlier.rowCount, INITIAL_CAPACITY));
+        rowCount = earlier.rowCount;
+        deleted.clear();
+        deleted.or(earlier.deleted);
+        deletedCount = earlier.deletedCount;
+        nextId = earlier.nextId;
+        cells.clear();
+        for(Column column : earlier.cells) {
+            cells.add(column.snapshot());
+        }
+        for(Index index : indexes.values()) {
+            index.clear();
+            fillIndex(index);
+        }
+    }
+
+    // Whether a query with this WHERE clause is better run on a snapshot(): the table is big and
+    // no index narrows the rows down, so the query reads them all
+    boolean wantsSnapshot(Condition where) {
+        return rowCount >= SNAPSHOT_ROWS && !hasIndexFor(where);
+    }
+
+    private boolean hasIndexFor(Condition where) {
+        if(where instanceof Condition.Comparison) {
+            Condition.Comparison comparison = (Condition.Comparison) where;
+            Index index = indexes.get(comparison.column.toLowerCase());
+            return index != null && comparison.isEquality() || index instanceof BTreeIndex && comparison.isRange();
+        }
+        if(where instanceof Condition.And) {
+            for(Condition term : ((Condition.And) where).terms) {
+                if(hasIndexFor(term)) {
+                    return true;
+                }
             }
         }
-        for(Row r : rows){
-            r.values.remove(colName.toLowerCase());
+        return false;
+    }
+
+    // Slots of the rows matching a WHERE clause, in table order
+    int[] filterRows(Condition where){
+        IntPredicate test = condition(where);
+        int[] candidates = indexLookup(where);
+        int count = 0;
+        if(candidates != null) {
+            for(int slot : candidates) {
+                if(test.test(slot)) {
+                    candidates[count++] = slot;
+                }
+            }
+            return Arrays.copyOf(candidates, count);
+        }
+        if(ParallelScan.worthwhile(rowCount)) {
+            return ParallelScan.filter(rowCount, test);
+        }
+        int[] matched = new int[rowCount];
+        for(int slot=0; slot<rowCount; slot++) {
+            if(test.test(slot)) {
+                matched[count++] = slot;
+            }
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+    // The slots of the rows matching a WHERE clause in table order. A test an index can answer
+    // is looked up there, anything else is checked row by row as it's iterated.
+    PrimitiveIterator.OfInt scan(Condition where){
+        IntPredicate test = condition(where);
+        int[] candidates = indexLookup(where);
+        if(candidates != null) {
+            return Arrays.stream(candidates).filter(test).iterator();
         }
+        if(ParallelScan.worthwhile(rowCount)) {
+            // The matching slots are found up front, in parallel
+            return Arrays.stream(ParallelScan.filter(rowCount, test)).iterator();
+        }
+        return IntStream.range(0, rowCount).filter(test).iterator();
     }
 
-    List<Row> filterRows(String wherePart){
-        if(wherePart == null || wherePart.trim().isEmpty()){
-            return new ArrayList<>(rows);
+    // The slots an index says may match the WHERE clause (they still have to be tested,
+    // e.g. 65 == 65.0 but '65' doesn't), or null if the rows have to be scanned.
+    // For an AND, the indexed term with the fewest candidates is used.
+    private int[] indexLookup(Condition where) {
+        if(where instanceof Condition.Comparison) {
+            Condition.Comparison comparison = (Condition.Comparison) where;
+            Index index = indexes.get(comparison.column.toLowerCase());
+            if(index != null && comparison.isEquality()) {
+                return index.lookup(comparison.text);
+            }
+            if(index instanceof BTreeIndex && comparison.isRange()) {
+                BTreeIndex ordered = (BTreeIndex) index;
+                return comparison.isLowerBound() ? ordered.range(comparison.text, null) : ordered.range(null, comparison.text);
+            }
         }
-        Pattern p = Pattern.compile("(?i)^([A-Za-z0-9]+)\\s*==\\s*'(.*)'$");
-        Matcher m = p.matcher(wherePart.trim());
-        if(!m.find()) {
-            return new ArrayList<>();
+        if(where instanceof Condition.And) {
+            int[] best = null;
+            for(Condition term : ((Condition.And) where).terms) {
+                int[] candidates = indexLookup(term);
+                if(candidates != null && (best == null || candidates.length < best.length)) {
+                    best = candidates;
+                }
+            }
+            return best;
         }
-        String col = m.group(1).toLowerCase();
-        String val = m.group(2);
+        return null;
+    }
 
-        List<Row> matched = new ArrayList<>();
-        for(Row r : rows) {
-            String leftVal = r.values.getOrDefault(col, "");
-            if(leftVal.equals(val)) {
-                matched.add(r);
+    // Like scan(where), but in the order of a column (equal values in table order). A B+tree index
+    // on the column is walked in order, otherwise the matching rows are sorted.
+    PrimitiveIterator.OfInt scan(Condition where, String orderBy, boolean descending) {
+        if(orderBy == null) {
+            return scan(where);
+        }
+        int ordinal = ordinal(orderBy);
+        IntPredicate test = condition(where);
+        Index index = indexes.get(orderBy.toLowerCase());
+        if(index instanceof BTreeIndex) {
+            PrimitiveIterator.OfInt ordered = ((BTreeIndex) index).slots(descending);
+            return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(ordered, Spliterator.ORDERED), false)
+                    .filter(test).iterator();
+        }
+        int[] matched = filterRows(where);
+        if(ordinal == 0) {
+            // Slots are already in id order
+            return IntStream.range(0, matched.length).map(i -> matched[descending ? matched.length - 1 - i : i]).iterator();
+        }
+        SortKey[] keys = new SortKey[matched.length];
+        Integer[] order = new Integer[matched.length];
+        for(int i=0; i<matched.length; i++) {
+            keys[i] = SortKey.of(cellValue(matched[i], ordinal));
+            order[i] = i;
+        }
+        // Equal values stay in table order either way. The tie-break is spelled out rather than left to
+        // the stability of the sort, as the merge in parallelSort doesn't keep equal elements in order.
+        Comparator<Integer> byKey = (a, b) -> {
+            int c = descending ? keys[b].compareTo(keys[a]) : keys[a].compareTo(keys[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+        if(ParallelScan.worthwhile(matched.length)) {
+            Arrays.parallelSort(order, byKey);
+        } else {
+            Arrays.sort(order, byKey);
+        }
+        return Arrays.stream(order).mapToInt(i -> matched[i]).iterator();
+    }
+
+    // Compiles a parsed WHERE clause into a test that can be applied to row slots one at a time.
+    // The slots of deleted rows never pass.
+    IntPredicate condition(Condition where){
+        IntPredicate test = where == null ? slot -> true : where.compile(this);
+        if(deletedCount == 0) {
+            return test;
+        }
+        return slot -> isLive(slot) && test.test(slot);
+    }
+
+    IntPredicate comparison(Condition.Comparison where) {
+        int ordinal = ordinal(where.column);
+        if(ordinal < 0) {
+            // Every cell of a column that doesn't exist reads as ""
+            boolean matches = where.matches("");
+            return slot -> matches;
+        }
+        if(ordinal == 0) {
+            if(where.comparesNumbers()) {
+                return slot -> where.matchesInteger(ids[slot]);
+            }
+            return slot -> where.matches(String.valueOf(ids[slot]));
+        }
+        // Works on the encoded values, e.g. tests each dictionary entry once instead of every row
+        return cells.get(ordinal - 1).matching(where);
+    }
+
+    // Share of rows (0 to 1) a test holds for, estimated from a small evenly spread sample
+    double estimateSelectivity(IntPredicate test) {
+        int samples = Math.min(rowCount, SELECTIVITY_SAMPLES);
+        if(samples == 0) {
+            return 1;
+        }
+        int hits = 0;
+        for(int i=0; i<samples; i++) {
+            if(test.test((int) ((long) i * rowCount / samples))) {
+                hits++;
             }
         }
-        return matched;
+        return (double) hits / samples;
     }
 }
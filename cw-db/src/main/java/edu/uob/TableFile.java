@@ -0,0 +1,266 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary .tbl file a table is saved to. The file is a sequence of PAGE_SIZE pages:
+ *
+ *   header pages: magic, version, page size, number of header pages, row count, next id,
+ *                 the table name and the user-defined column names
+ *   data pages:   [rows in the page][pages spanned] then each row as its id followed by
+ *                 one value per column
+ *
+ * Strings are stored as a byte length followed by their UTF-8 bytes, so values may contain tabs
+ * and newlines. A row never crosses a page boundary; a row too big for one page gets a run of
+ * pages to itself. Files are read through memory-mapped windows of whole pages, and written to
+ * a temporary file that then replaces the old one.
+ *
+ * Run with a .tbl path (mvn exec:java@dump -Dexec.args=...) to print a file as text.
+ */
+class TableFile {
+    static final String EXTENSION = ".tbl";
+    // The text format tables were saved in before, still read so existing databases can be migrated
+    static final String LEGACY_EXTENSION = ".tab";
+
+    private static final int MAGIC = 0x43574442; // "CWDB"
+    private static final int VERSION = 1;
+    static final int PAGE_SIZE = 8192;
+    private static final int PAGE_HEADER = 8;
+    // Largest part of the file mapped at once
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    static void write(Table table, File file) throws IOException {
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            List<String> columns = table.getColumns();
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(PAGE_SIZE);
+            header.writeInt(0); // header pages, filled in below
+            header.writeInt(table.liveCount());
+            header.writeInt(table.nextId);
+            writeString(header, table.name);
+            header.writeInt(columns.size() - 1);
+            for(int i=1; i<columns.size(); i++) {
+                writeString(header, columns.get(i));
+            }
+            ByteBuffer headerPages = ByteBuffer.allocate(pagesFor(headerBytes.size()) * PAGE_SIZE);
+            headerPages.put(headerBytes.toByteArray());
+            headerPages.putInt(12, headerPages.capacity() / PAGE_SIZE);
+            headerPages.clear();
+            writeFully(channel, headerPages);
+
+            PageWriter pages = new PageWriter(channel);
+            List<byte[]> encoded = new ArrayList<>();
+            for(int slot=0; slot<table.rowCount; slot++) {
+                if(!table.isLive(slot)) {
+                    continue;
+                }
+                int size = 4;
+                for(Column column : table.cells) {
+                    byte[] value = column.get(slot).getBytes(StandardCharsets.UTF_8);
+                    encoded.add(value);
+                    size += 4 + value.length;
+                }
+                ByteBuffer row = pages.reserve(size);
+                row.putInt(table.ids[slot]);
+                for(byte[] value : encoded) {
+                    row.putInt(value.length);
+                    row.put(value);
+                }
+                encoded.clear();
+            }
+            pages.finish();
+            channel.force(false);
+        }
+        replace(temporary, file);
+    }
+
+    // Renames temporary over file and forces the directory, so the rename survives a crash too
+    static void replace(File temporary, File file) throws IOException {
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try(FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch(IOException e) {
+            // Some platforms (Windows) can't open a directory, the rename is all they offer
+        }
+    }
+
+    static Table read(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(file, channel);
+        } catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt table file: " + file.getAbsolutePath());
+        }
+    }
+
+    private static Table read(File file, FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, PAGE_SIZE));
+        if(first.limit() < 16 || first.getInt(0) != MAGIC) {
+            throw new IOException("Not a table file: " + file.getAbsolutePath());
+        }
+        if(first.getInt(4) != VERSION || first.getInt(8) != PAGE_SIZE) {
+            throw new IOException("Unsupported table file version " + first.getInt(4) + ": " + file.getAbsolutePath());
+        }
+        int headerPages = first.getInt(12);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) headerPages * PAGE_SIZE);
+        header.position(16);
+        int rowCount = header.getInt();
+        int nextId = header.getInt();
+        String tableName = readString(header);
+        int columnCount = header.getInt();
+        List<String> columns = new ArrayList<>();
+        for(int i=0; i<columnCount; i++) {
+            columns.add(readString(header));
+        }
+        Table table = new Table(tableName, columns);
+
+        String[] values = new String[columnCount];
+        List<String> row = Arrays.asList(values);
+        long position = (long) headerPages * PAGE_SIZE;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        while(position < size) {
+            // Remap when the next page run isn't inside the current window
+            if(window == null || position + PAGE_HEADER > windowStart + window.limit()
+                    || position + (long) window.getInt((int) (position - windowStart) + 4) * PAGE_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+                int span = window.getInt(4);
+                if((long) span * PAGE_SIZE > window.limit()) {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, (long) span * PAGE_SIZE));
+                }
+            }
+            window.position((int) (position - windowStart));
+            int rows = window.getInt();
+            int span = window.getInt();
+            if(span < 1) {
+                throw new IOException("Corrupt table file: " + file.getAbsolutePath());
+            }
+            for(int r=0; r<rows; r++) {
+                int id = window.getInt();
+                for(int c=0; c<columnCount; c++) {
+                    values[c] = readString(window);
+                }
+                table.insertRow(id, row);
+            }
+            position += (long) span * PAGE_SIZE;
+        }
+        if(table.rowCount != rowCount) {
+            throw new IOException("Table file holds " + table.rowCount + " rows instead of " + rowCount + ": " + file.getAbsolutePath());
+        }
+        // Ids of rows deleted from the end aren't handed out again
+        table.nextId = Math.max(table.nextId, nextId);
+        return table;
+    }
+
+    // Prints the table files given as arguments as tab-separated text, escaping tabs and newlines in values
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0) {
+            System.err.println("Usage: TableFile <file" + EXTENSION + "> ...");
+            System.exit(1);
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        for(String path : args) {
+            File file = new File(path);
+            Table table = read(file);
+            out.println("# " + file.getPath() + ": table " + table.name + ", " + table.rowCount + " rows, next id "
+                    + table.nextId + ", " + pagesFor(file.length()) + " pages of " + PAGE_SIZE + " bytes");
+            out.println(String.join("\t", table.getColumns()));
+            for(int slot=0; slot<table.rowCount; slot++) {
+                StringBuilder line = new StringBuilder().append(table.ids[slot]);
+                for(Column column : table.cells) {
+                    line.append('\t').append(escape(column.get(slot)));
+                }
+                out.println(line);
+            }
+        }
+        out.flush();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static int pagesFor(long bytes) {
+        return (int) Math.max(1, (bytes + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Fills data pages one row at a time and writes each page out once the next row doesn't fit
+    private static class PageWriter {
+        private final FileChannel channel;
+        private ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        private int rows = 0;
+
+        PageWriter(FileChannel channel) {
+            this.channel = channel;
+            page.position(PAGE_HEADER);
+        }
+
+        // Room for a row of the given size, in the current page or a new one
+        ByteBuffer reserve(int size) throws IOException {
+            if(page.remaining() < size) {
+                flush();
+                if(page.remaining() < size) {
+                    page = ByteBuffer.allocate(pagesFor(PAGE_HEADER + size) * PAGE_SIZE);
+                    page.position(PAGE_HEADER);
+                }
+            }
+            rows++;
+            return page;
+        }
+
+        void finish() throws IOException {
+            flush();
+        }
+
+        private void flush() throws IOException {
+            if(rows > 0) {
+                page.putInt(0, rows);
+                page.putInt(4, page.capacity() / PAGE_SIZE);
+                page.clear();
+                writeFully(channel, page);
+            }
+            if(page.capacity() != PAGE_SIZE) {
+                page = ByteBuffer.allocate(PAGE_SIZE);
+            } else {
+                Arrays.fill(page.array(), (byte) 0);
+            }
+            page.position(PAGE_HEADER);
+            rows = 0;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package edu.uob;
+
+/** When the tables found on disk at startup are read into memory, chosen with -Ddb.tableLoading. */
+enum TableLoading {
+    // Every table is read before the server accepts connections
+    EAGER,
+    // Only the names are registered, a table is read when first used; USE warms its database in the background
+    LAZY,
+    // Like LAZY, but every database is also warmed in the background straight after startup
+    BACKGROUND
+}
@@ -0,0 +1,31 @@
+package edu.uob;
+
+/** A single lexical unit of a command, as produced by {@link Lexer}. */
+class Token {
+    enum Kind { WORD, NUMBER, STRING, SYMBOL, END }
+
+    final Kind kind;
+    // For STRING tokens this is the text between the quotes
+    final String text;
+    // Where the token starts in the command, used for error messages
+    final int position;
+
+    Token(Kind kind, String text, int position) {
+        this.kind = kind;
+        this.text = text;
+        this.position = position;
+    }
+
+    // Keywords are matched case-insensitively, just like the old regexes did
+    boolean isKeyword(String keyword) {
+        return kind == Kind.WORD && text.equalsIgnoreCase(keyword);
+    }
+
+    boolean isSymbol(String symbol) {
+        return kind == Kind.SYMBOL && text.equals(symbol);
+    }
+
+    String describe() {
+        return kind == Kind.END ? "end of command" : "'" + text + "'";
+    }
+}
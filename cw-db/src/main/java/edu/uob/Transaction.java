@@ -0,0 +1,43 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes a session has made since BEGIN. They are made to the tables straight away, and
+ * each table changed is claimed by the transaction until it ends: other sessions read the table
+ * as it was before (see {@link Table#committed}) and can't change it. The change log records
+ * are held back and appended as one record at COMMIT, so after a crash either all of them or
+ * none are replayed, and the commit waits for one flush however many changes it covers.
+ */
+class Transaction {
+    final Database db;
+    // Tables claimed so far, in the order they were first changed
+    final List<Table> tables = new ArrayList<>();
+    final List<ChangeLog.Record> records = new ArrayList<>();
+
+    Transaction(Database db) {
+        this.db = db;
+    }
+
+    // Queries and row changes can be part of a transaction, anything changing the schema can't
+    static boolean allows(Statement statement) {
+        return statement instanceof Statement.Select || statement instanceof Statement.Join
+                || statement instanceof Statement.Insert || statement instanceof Statement.Update
+                || statement instanceof Statement.Delete || statement instanceof Statement.Prepare
+                || statement instanceof Statement.Execute || statement instanceof Statement.Begin
+                || statement instanceof Statement.Commit || statement instanceof Statement.Rollback
+                || statement instanceof Statement.ShowCache;
+    }
+
+    // Claims table for this transaction if it hasn't already, keeping its rows from before the
+    // first change. The caller holds the table's write lock.
+    void claim(Table table) {
+        if(table.owner == this) {
+            return;
+        }
+        table.committed = table.snapshot();
+        table.owner = this;
+        tables.add(table);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.uob;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * The type of a stored value. Cells are kept as text (that's also what the table files hold), so the
+ * type is inferred from the form of the text: 65 is an integer, 72.5 a float, TRUE a boolean and
+ * anything else, including '007', a string. Bare numbers and booleans in INSERT and UPDATE are
+ * written in canonical form so that they are typed the same way after a restart.
+ */
+enum ValueType {
+    INTEGER, FLOAT, BOOLEAN, STRING;
+
+    // Integers longer than this are kept as strings rather than risk overflowing a long
+    private static final int MAX_INTEGER_DIGITS = 18;
+
+    boolean isNumber() {
+        return this == INTEGER || this == FLOAT;
+    }
+
+    static ValueType of(String text) {
+        if(text.equalsIgnoreCase("TRUE") || text.equalsIgnoreCase("FALSE")) {
+            return BOOLEAN;
+        }
+        int start = text.startsWith("-") ? 1 : 0;
+        int point = text.indexOf('.');
+        int end = point < 0 ? text.length() : point;
+        int digits = end - start;
+        if(digits < 1 || !allDigits(text, start, end)) {
+            return STRING;
+        }
+        // No leading zeros, and no "-0"
+        if(text.charAt(start) == '0' && (digits > 1 || (start == 1 && point < 0))) {
+            return STRING;
+        }
+        if(point < 0) {
+            return digits <= MAX_INTEGER_DIGITS ? INTEGER : STRING;
+        }
+        return point + 1 < text.length() && allDigits(text, point + 1, text.length()) ? FLOAT : STRING;
+    }
+
+    // The canonical text of a bare (unquoted) literal: +007 is stored as 7, true as TRUE
+    static String canonical(String text) {
+        int start = text.startsWith("+") || text.startsWith("-") ? 1 : 0;
+        int point = text.indexOf('.');
+        if(point < 0 && text.length() > start && allDigits(text, start, text.length())) {
+            // Most integers are written canonically already, LOAD DATA goes through lots of them
+            if(start == 0 && (text.charAt(0) != '0' || text.length() == 1)
+                    || text.charAt(0) == '-' && text.charAt(1) != '0') {
+                return text;
+            }
+            return new BigInteger(text).toString();
+        }
+        if(point > start && point + 1 < text.length() && allDigits(text, start, point)
+                && allDigits(text, point + 1, text.length())) {
+            return new BigDecimal(text).toPlainString();
+        }
+        if(text.equalsIgnoreCase("TRUE") || text.equalsIgnoreCase("FALSE")) {
+            return text.toUpperCase();
+        }
+        return text;
+    }
+
+    private static boolean allDigits(String text, int from, int to) {
+        for(int i=from; i<to; i++) {
+            char c = text.charAt(i);
+            if(c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,9 +4,29 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 public class ExampleDBTests {
 
@@ -18,6 +38,12 @@ public class ExampleDBTests {
         server = new DBServer();
     }
 
+    // Stop its background threads and close its change logs _after_ every @Test
+    @AfterEach
+    public void teardown() {
+        server.close();
+    }
+
     // Random name generator - useful for testing "bare earth" queries (i.e. where tables don't previously exist)
     private String generateRandomName() {
         String randomName = "";
@@ -82,6 +108,7 @@ public class ExampleDBTests {
         sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
         sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
         // Create a new server object
+        server.close();
         server = new DBServer();
         sendCommandToServer("USE " + randomName + ";");
         String response = sendCommandToServer("SELECT * FROM marks;");
@@ -101,4 +128,987 @@ public class ExampleDBTests {
         assertFalse(response.contains("[OK]"), "An attempt was made to access a non-existent table, however an [OK] tag was returned");
     }
 
+    // Each session keeps its own current database, so one client's USE doesn't affect another client
+    @Test
+    public void testSessionsKeepTheirOwnDatabase() {
+        String firstName = generateRandomName();
+        String secondName = generateRandomName();
+        Session first = new Session();
+        Session second = new Session();
+        server.handleCommand(first, "CREATE DATABASE " + firstName + ";");
+        server.handleCommand(first, "CREATE DATABASE " + secondName + ";");
+        server.handleCommand(first, "USE " + firstName + ";");
+        server.handleCommand(second, "USE " + secondName + ";");
+        server.handleCommand(first, "CREATE TABLE marks (name, mark, pass);");
+        server.handleCommand(first, "INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        String response = server.handleCommand(second, "SELECT * FROM marks;");
+        assertTrue(response.contains("[ERROR]"), "The second session selected another database, but could still see the first session's table");
+        response = server.handleCommand(first, "SELECT * FROM marks;");
+        assertTrue(response.contains("Simon"), "The first session lost track of its database after another session ran USE");
+    }
+
+    // Commas and semicolons inside quoted values are part of the value, not separators
+    @Test
+    public void testQuotedValuesKeepPunctuation() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE people (name, town);");
+        String response = sendCommandToServer("INSERT INTO people VALUES ('Smith, John', 'Bath; Somerset');");
+        assertTrue(response.contains("[OK]"), "A quoted value containing a comma was split into two values");
+        response = sendCommandToServer("SELECT town FROM people WHERE name == 'Smith, John';");
+        assertTrue(response.contains("Bath; Somerset"), "A value containing a comma could not be queried back");
+    }
+
+    // A prepared statement is checked once and can then be run with different values
+    @Test
+    public void testPreparedStatements() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        String response = sendCommandToServer("PREPARE addMark AS INSERT INTO marks VALUES (?, ?, TRUE);");
+        assertTrue(response.contains("[OK]"), "A valid PREPARE was made, however an [OK] tag was not returned");
+        sendCommandToServer("EXECUTE addMark ('Simon', 65);");
+        sendCommandToServer("EXECUTE addMark ('Sion', 55);");
+        sendCommandToServer("PREPARE findMark AS SELECT mark FROM marks WHERE name == ?;");
+        response = sendCommandToServer("EXECUTE findMark ('Sion');");
+        assertTrue(response.contains("55"), "Executing a prepared SELECT didn't return the row its argument selects");
+        assertFalse(response.contains("65"), "Executing a prepared SELECT returned a row its argument doesn't select");
+        response = sendCommandToServer("PREPARE broken AS SELECT grade FROM marks;");
+        assertTrue(response.contains("[ERROR]"), "A statement using a column that doesn't exist was prepared without an [ERROR] tag");
+    }
+
+    // An indexed column has to give the same answers as a plain one, before and after changes and restarts
+    @Test
+    public void testIndexedLookups() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        String response = sendCommandToServer("CREATE INDEX ON marks (name);");
+        assertTrue(response.contains("[OK]"), "A valid CREATE INDEX was made, however an [OK] tag was not returned");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        sendCommandToServer("UPDATE marks SET name = 'Rob' WHERE name == 'Simon';");
+        response = sendCommandToServer("SELECT mark FROM marks WHERE name == 'Rob';");
+        assertTrue(response.contains("65"), "A row renamed by UPDATE wasn't found through the index under its new name");
+        response = sendCommandToServer("SELECT mark FROM marks WHERE name == 'Simon';");
+        assertTrue(response.contains("[ERROR]"), "A row renamed by UPDATE was still found through the index under its old name");
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Chris';");
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Chris';");
+        assertTrue(response.contains("[ERROR]"), "A deleted row was still found through the index after a restart");
+        response = sendCommandToServer("CREATE INDEX ON marks (name);");
+        assertTrue(response.contains("[ERROR]"), "The index on marks (name) didn't survive the restart");
+    }
+
+    // Values must read back exactly as written, whichever way a column ends up being stored
+    @Test
+    public void testColumnValuesKeepTheirExactText() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE codes (code);");
+        sendCommandToServer("INSERT INTO codes VALUES (12);");
+        sendCommandToServer("INSERT INTO codes VALUES (-3);");
+        sendCommandToServer("INSERT INTO codes VALUES ('007');");
+        sendCommandToServer("INSERT INTO codes VALUES (12);");
+        String response = sendCommandToServer("SELECT * FROM codes WHERE code == '007';");
+        assertTrue(response.contains("007"), "A value with leading zeros didn't read back unchanged");
+        response = sendCommandToServer("SELECT * FROM codes WHERE code == 7;");
+        assertTrue(response.contains("[ERROR]"), "7 matched the value '007'");
+        sendCommandToServer("UPDATE codes SET code = 'UK' WHERE code == 12;");
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT id FROM codes WHERE code == 'UK';");
+        assertTrue(response.contains("1") && response.contains("4"), "Updated values weren't found after a restart");
+        response = sendCommandToServer("SELECT * FROM codes WHERE code == -3;");
+        assertTrue(response.contains("-3"), "A negative number didn't read back unchanged after a restart");
+    }
+
+    // Numbers are compared by value, quoted values as text
+    @Test
+    public void testComparisonOperators() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 9.5, FALSE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark > 10;");
+        assertTrue(response.contains("Simon") && response.contains("Rob"), "mark > 10 didn't return the rows with larger marks");
+        assertFalse(response.contains("Sion"), "mark > 10 returned 9.5, the values must have been compared as text");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark <= 35;");
+        assertTrue(response.contains("Sion") && response.contains("Rob") && !response.contains("Simon"), "mark <= 35 returned the wrong rows");
+        response = sendCommandToServer("SELECT name FROM marks WHERE pass != TRUE;");
+        assertTrue(response.contains("Sion") && !response.contains("Simon"), "pass != TRUE returned the wrong rows");
+        response = sendCommandToServer("SELECT name FROM marks WHERE name LIKE 'io';");
+        assertTrue(response.contains("Sion") && !response.contains("Simon"), "LIKE didn't match on part of the value");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark > 'abc';");
+        assertTrue(response.contains("[ERROR]"), "mark > 'abc' returned numbers, which sort before letters when compared as text");
+    }
+
+    // AND binds tighter than OR, parentheses override that, and UPDATE/DELETE filter the same way as SELECT
+    @Test
+    public void testCombinedConditions() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE pass == TRUE AND mark < 60 OR name == 'Chris';");
+        assertTrue(response.contains("Sion") && response.contains("Chris") && !response.contains("Simon"), "AND/OR without parentheses returned the wrong rows");
+        response = sendCommandToServer("SELECT name FROM marks WHERE (pass == TRUE) AND ((mark < 60) OR (name == 'Chris'));");
+        assertTrue(response.contains("Sion") && !response.contains("Chris") && !response.contains("Simon"), "A parenthesised OR inside an AND returned the wrong rows");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE mark > 50 AND name != 'Simon';");
+        sendCommandToServer("DELETE FROM marks WHERE mark == 65 OR mark == 20;");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("70") && !response.contains("Simon") && !response.contains("Chris"), "UPDATE or DELETE with a combined condition changed the wrong rows");
+    }
+
+    // A B+tree index answers range queries and ORDER BY, and is kept up to date and restored after a restart
+    @Test
+    public void testOrderedIndex() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 9.5);");
+        String response = sendCommandToServer("CREATE INDEX ON marks (mark) USING BTREE;");
+        assertTrue(response.contains("[OK]"), "A valid CREATE INDEX ... USING BTREE was made, however an [OK] tag was not returned");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Sion';");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark > 40 ORDER BY mark DESC;");
+        assertTrue(response.indexOf("Sion") >= 0 && response.indexOf("Sion") < response.indexOf("Simon") && !response.contains("Rob"),
+                "A range query with ORDER BY ... DESC returned the wrong rows or order");
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("DELETE FROM marks WHERE mark < 66 AND mark >= 65;");
+        response = sendCommandToServer("SELECT name FROM marks ORDER BY mark;");
+        assertTrue(response.indexOf("Rob") >= 0 && response.indexOf("Rob") < response.indexOf("Sion") && !response.contains("Simon"),
+                "ORDER BY through the index returned the wrong rows or order after a restart");
+        response = sendCommandToServer("CREATE INDEX ON marks (mark);");
+        assertTrue(response.contains("[ERROR]"), "The index on marks (mark) didn't survive the restart");
+    }
+
+    // Tables found on disk at startup are only read when a command first needs them
+    @Test
+    public void testTablesLoadOnFirstUse() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE TABLE old (name);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        // Closing the server folds the change log into the table files, the next one starts from the files alone
+        server.close();
+        assertTrue(Path.of("databases", randomName, ChangeLog.FILE_NAME).toFile().length() == 0, "Closing the server left changes in the change log");
+        server = new DBServer();
+        String response = sendCommandToServer("USE " + randomName + ";");
+        assertTrue(response.contains("[OK]"), "A database registered at startup could not be used");
+        response = sendCommandToServer("SELECT * FROM marks WHERE mark > 60;");
+        assertTrue(response.contains("Simon"), "A table that wasn't loaded at startup didn't return its rows");
+        response = sendCommandToServer("CREATE TABLE old (name);");
+        assertTrue(response.contains("[ERROR]"), "A table that wasn't loaded yet could be created a second time");
+        response = sendCommandToServer("DROP TABLE old;");
+        assertTrue(response.contains("[OK]"), "A table that wasn't loaded yet could not be dropped");
+        response = sendCommandToServer("SELECT * FROM old;");
+        assertTrue(response.contains("[ERROR]"), "A dropped table could still be queried");
+    }
+
+    // The rows of a JOIN reply without the generated id that starts each of them
+    private static List<String> joinedRows(String response) {
+        List<String> rows = new ArrayList<>();
+        String[] lines = response.split("\n");
+        for(int i=2; i<lines.length; i++) {
+            rows.add(lines[i].substring(lines[i].indexOf('\t') + 1).trim());
+        }
+        return rows;
+    }
+
+    // However JOIN runs it, the rows come out as the old nested loop gave them: in left table order,
+    // and the matches for each left row in right table order
+    @Test
+    public void testJoinKeepsNestedLoopOrder() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 1), ('Sion', 2), ('Rob', 1), ('Chris', 3);");
+        sendCommandToServer("CREATE TABLE grades (mark, letter);");
+        sendCommandToServer("INSERT INTO grades VALUES (1, 'x'), (3, 'y'), (1, 'z'), (9, 'w');");
+        List<String> expected = List.of("Simon\t1\t1\tx", "Simon\t1\t1\tz", "Rob\t1\t1\tx", "Rob\t1\t1\tz", "Chris\t3\t3\ty");
+        // The right table is no bigger than the left, so it is the one hashed
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expected), "A JOIN hashing the right table gave the wrong rows or order");
+        // Now the left table is the smaller one
+        sendCommandToServer("INSERT INTO grades VALUES (7, 'q');");
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expected), "A JOIN hashing the left table gave the wrong rows or order");
+        sendCommandToServer("CREATE INDEX ON grades (mark);");
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expected), "A JOIN probing an index gave the wrong rows or order");
+        sendCommandToServer("DROP INDEX ON grades (mark);");
+        sendCommandToServer("CREATE INDEX ON marks (mark);");
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expected), "A JOIN using the left table's index gave the wrong rows or order");
+    }
+
+    // A reply longer than the batch a query formats under its table locks carries on from snapshots
+    // of the tables, with the same rows in the same order
+    @Test
+    public void testRepliesLongerThanABatch() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        int count = RowStream.BATCH_ROWS + RowStream.BATCH_ROWS / 2;
+        StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+        List<String> expectedRows = new ArrayList<>();
+        List<String> expectedJoin = new ArrayList<>();
+        // Rows with mark 0, 1 and 2 have 3, 2 and 1 matches, so a batch ends between two matches of a row
+        String[] letters = {"a", "b", "c", "d", "e", "f"};
+        int[] grades = {0, 1, 2, 0, 1, 0};
+        for(int i=0; i<count; i++) {
+            insert.append(i == 0 ? "" : ", ").append("('s").append(i).append("', ").append(i % 3).append(")");
+            expectedRows.add((i + 1) + "\ts" + i + "\t" + (i % 3));
+            for(int g=0; g<letters.length; g++) {
+                if(grades[g] == i % 3) {
+                    expectedJoin.add("s" + i + "\t" + (i % 3) + "\t" + grades[g] + "\t" + letters[g]);
+                }
+            }
+        }
+        sendCommandToServer(insert.append(";").toString());
+        sendCommandToServer("CREATE TABLE grades (mark, letter);");
+        sendCommandToServer("INSERT INTO grades VALUES (0, 'a'), (1, 'b'), (2, 'c'), (0, 'd'), (1, 'e'), (0, 'f');");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        List<String> rows = new ArrayList<>();
+        for(String line : response.split("\n")) {
+            rows.add(line.trim());
+        }
+        assertTrue(rows.subList(2, rows.size()).equals(expectedRows), "A SELECT longer than a batch gave the wrong rows or order");
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expectedJoin), "A JOIN longer than a batch gave the wrong rows or order");
+        sendCommandToServer("CREATE INDEX ON grades (mark);");
+        assertTrue(joinedRows(sendCommandToServer("JOIN marks AND grades ON mark AND mark;")).equals(expectedJoin), "A JOIN probing an index past a batch gave the wrong rows or order");
+    }
+
+    // Table files hold values as length-prefixed bytes, so tabs inside values survive a restart
+    @Test
+    public void testValuesWithTabsPersist() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE notes (text, mark);");
+        sendCommandToServer("INSERT INTO notes VALUES ('one\ttwo', 3);");
+        server.close();
+        server = new DBServer();
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM notes WHERE mark == 3;");
+        assertTrue(response.contains("one\ttwo\t3"), "A value containing a tab was not read back intact after a restart");
+    }
+
+    // CHECKPOINT writes the changed tables out and empties the change log, later changes are logged on top
+    @Test
+    public void testCheckpoint() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        String response = sendCommandToServer("CHECKPOINT;");
+        assertTrue(response.contains("[OK]"), "A valid CHECKPOINT was made, however an [OK] tag was not returned");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Simon';");
+        server.close(false);
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark >= 55;");
+        assertTrue(response.contains("Simon") && response.contains("Sion"), "Changes made before and after a CHECKPOINT were lost by a restart");
+    }
+
+    // Deleted rows are skipped by every query until VACUUM closes the gaps they leave
+    @Test
+    public void testDeleteAndVacuum() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE INDEX ON marks (mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark > 30;");
+        assertTrue(response.contains("Simon") && response.contains("Rob") && !response.contains("Sion"), "A deleted row was still returned");
+        assertTrue(sendCommandToServer("SELECT * FROM marks WHERE mark == 55;").contains("[ERROR]"), "A deleted row was still found through the index");
+        response = sendCommandToServer("VACUUM marks;");
+        assertTrue(response.contains("[OK]"), "A valid VACUUM was made, however an [OK] tag was not returned");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark == 55 OR mark == 20;");
+        assertTrue(response.contains("Sion") && response.contains("Chris") && !response.contains("Rob"), "Rows were lost or changed by VACUUM");
+        assertTrue(sendCommandToServer("VACUUM nosuchtable;").contains("[ERROR]"), "VACUUM of a table that doesn't exist did not fail");
+    }
+
+    // Changes made inside a transaction are only seen by other sessions once committed, and ROLLBACK undoes them
+    @Test
+    public void testTransactions() {
+        String randomName = generateRandomName();
+        Session first = new Session();
+        Session second = new Session();
+        server.handleCommand(first, "CREATE DATABASE " + randomName + ";");
+        server.handleCommand(first, "USE " + randomName + ";");
+        server.handleCommand(second, "USE " + randomName + ";");
+        server.handleCommand(first, "CREATE TABLE marks (name, mark);");
+        server.handleCommand(first, "INSERT INTO marks VALUES ('Simon', 65);");
+        assertTrue(server.handleCommand(first, "BEGIN;").contains("[OK]"), "A valid BEGIN was made, however an [OK] tag was not returned");
+        server.handleCommand(first, "INSERT INTO marks VALUES ('Sion', 55);");
+        server.handleCommand(first, "UPDATE marks SET mark = 70 WHERE name == 'Simon';");
+        assertTrue(server.handleCommand(first, "SELECT * FROM marks;").contains("Sion"), "A transaction couldn't see its own changes");
+        String response = server.handleCommand(second, "SELECT * FROM marks;");
+        assertTrue(response.contains("65") && !response.contains("Sion"), "Another session saw changes that weren't committed yet");
+        assertTrue(server.handleCommand(second, "DELETE FROM marks WHERE name == 'Simon';").contains("[ERROR]"), "Another session changed a table with uncommitted changes");
+        assertTrue(server.handleCommand(first, "COMMIT;").contains("[OK]"), "A valid COMMIT was made, however an [OK] tag was not returned");
+        assertTrue(server.handleCommand(second, "SELECT * FROM marks;").contains("Sion"), "Committed changes weren't seen by another session");
+        server.handleCommand(first, "BEGIN;");
+        server.handleCommand(first, "DELETE FROM marks WHERE name == 'Sion';");
+        assertTrue(server.handleCommand(first, "ROLLBACK;").contains("[OK]"), "A valid ROLLBACK was made, however an [OK] tag was not returned");
+        assertTrue(server.handleCommand(first, "SELECT * FROM marks;").contains("Sion"), "ROLLBACK didn't undo a change");
+        server.close();
+        server = new DBServer();
+        server.handleCommand(first, "USE " + randomName + ";");
+        response = server.handleCommand(first, "SELECT * FROM marks;");
+        assertTrue(response.contains("Sion") && response.contains("70"), "Committed changes were lost by a restart");
+    }
+
+    // A snapshot, which long queries read instead of holding the table's lock, doesn't see later changes
+    @Test
+    public void testSnapshotKeepsItsRows() {
+        Table table = new Table("marks", List.of("name", "mark"));
+        for(int i=1; i<=100; i++) {
+            table.insertRow(i, List.of("Student" + i, String.valueOf(i)));
+        }
+        Table snapshot = table.snapshot();
+        table.updateRows(new int[] { 0 }, Map.of("mark", "top"));
+        table.deleteRows(new int[] { 1, 99 });
+        table.insertRow(101, List.of("Simon", "65"));
+        table.addColumn("pass");
+        assertTrue(snapshot.rowCount == 100 && snapshot.liveCount() == 100, "Rows changed in the table showed up in an earlier snapshot");
+        assertTrue(snapshot.cellValue(0, 2).equals("1") && snapshot.cellValue(99, 1).equals("Student100"), "Values changed in the table showed up in an earlier snapshot");
+        assertTrue(snapshot.getColumns().size() == 3, "A column added to the table showed up in an earlier snapshot");
+        assertTrue(table.cellValue(0, 2).equals("top") && table.liveCount() == 99, "Changes made after a snapshot were lost");
+    }
+
+    // INSERT can add several rows at once and LOAD DATA adds the rows of a CSV file, all or none of them
+    @Test
+    public void testMultiRowInsertAndLoad() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        String response = sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE);");
+        assertTrue(response.contains("[OK]"), "A valid multi-row INSERT was made, however an [OK] tag was not returned");
+        Path file = Files.createTempFile("marks", ".csv");
+        Files.writeString(file, "name,mark,pass\nRob,35,FALSE\n\"Chris, the second\",20,FALSE\n");
+        response = sendCommandToServer("LOAD DATA '" + file + "' INTO marks;");
+        assertTrue(response.contains("[OK]"), "A valid LOAD DATA was made, however an [OK] tag was not returned");
+        Files.writeString(file, "Bob,10,FALSE\nBad,10\n");
+        assertTrue(sendCommandToServer("LOAD DATA '" + file + "' INTO marks;").contains("[ERROR]"), "A file with a short line was loaded");
+        Files.delete(file);
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("2\tSion") && response.contains("3\tRob") && response.contains("4\tChris, the second\t20"), "Inserted or loaded rows were lost, or the header line was loaded as a row");
+        assertFalse(response.contains("Bob"), "A row of a failed load was added");
+    }
+
+    // A repeated SELECT is answered from the result cache until its table changes
+    @Test
+    public void testResultCache() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65), ('Sion', 55);");
+        String first = sendCommandToServer("SELECT name FROM marks WHERE mark > 60;");
+        String second = sendCommandToServer("select name from MARKS where mark > 60;");
+        assertTrue(first.equals(second), "The same query written differently gave a different reply");
+        String response = sendCommandToServer("SHOW CACHE;");
+        assertTrue(response.contains("[OK]") && response.contains("hitRate") && response.contains("\n1\t"), "SHOW CACHE didn't report the cached reply");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Sion';");
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark > 60;");
+        assertTrue(response.contains("Sion"), "A cached reply was given after its table changed");
+        sendCommandToServer("ALTER TABLE marks ADD pass;");
+        assertTrue(sendCommandToServer("SELECT * FROM marks WHERE mark > 60;").contains("pass"), "A cached reply was given after a column was added");
+    }
+
+    // Runs the non-blocking front end on a free port, until the thread returned is interrupted
+    private Thread startNonBlockingServer(int[] port) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port[0] = probe.getLocalPort();
+        }
+        Thread listener = new Thread(() -> {
+            try {
+                server.nonBlockingListenOn(port[0]);
+            } catch (IOException e) {
+                System.err.println("Test server stopped: " + e.getMessage());
+            }
+        });
+        listener.start();
+        return listener;
+    }
+
+    // Connects to a server that may still be starting up
+    private static Socket connectTo(int port) throws IOException, InterruptedException {
+        for(int attempt=0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if(attempt == 100) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static void sendLine(Writer out, String line) throws IOException {
+        out.write(line + "\n");
+        out.flush();
+    }
+
+    // Reads one reply off a socket, up to the END_OF_TRANSMISSION line that ends it
+    private static String readReply(BufferedReader in) throws IOException {
+        StringBuilder reply = new StringBuilder();
+        String line;
+        while((line = in.readLine()) != null && !line.equals(String.valueOf(DBServer.END_OF_TRANSMISSION))) {
+            reply.append(line).append('\n');
+        }
+        return reply.toString().trim();
+    }
+
+    // A result far bigger than the non-blocking server queues for a connection still arrives whole,
+    // also when the client only starts reading some time after sending the query
+    @Test
+    public void testLargeResultStreamsOverSocket() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE big (name, mark);");
+        for(int batch=0; batch<30; batch++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO big VALUES ");
+            for(int i=0; i<1000; i++) {
+                insert.append(i == 0 ? "" : ", ").append("('row number ").append(batch * 1000 + i).append("', ").append(i).append(")");
+            }
+            sendCommandToServer(insert.append(";").toString());
+        }
+        String expected = server.handleCommand("SELECT * FROM big;");
+        int[] port = new int[1];
+        Thread listener = startNonBlockingServer(port);
+        try (Socket socket = connectTo(port[0])) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            sendLine(out, "USE " + randomName + ";");
+            assertTrue(readReply(in).contains("[OK]"), "USE over a socket failed");
+            sendLine(out, "SELECT * FROM big;");
+            Thread.sleep(200);
+            String response = readReply(in);
+            assertTrue(response.equals(expected), "A large result sent over a socket was not the same as the one returned directly");
+            sendLine(out, "SELECT name FROM big WHERE mark == 999;");
+            assertTrue(readReply(in).split("\n").length == 32, "The connection was not usable after a large result");
+        } finally {
+            listener.interrupt();
+            listener.join();
+        }
+    }
+
+    // Clients that send a query with a huge reply and then stop reading hold neither a worker thread
+    // nor the table's lock, so other clients are still served and can change the table
+    @Test
+    public void testStalledClientsDontBlockOthers() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        for(int batch=0; batch<5; batch++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+            for(int i=0; i<1000; i++) {
+                insert.append(i == 0 ? "" : ", ").append("('student").append(batch * 1000 + i).append("', ").append(i % 50).append(")");
+            }
+            sendCommandToServer(insert.append(";").toString());
+        }
+        int[] port = new int[1];
+        Thread listener = startNonBlockingServer(port);
+        List<Socket> stalled = new ArrayList<>();
+        try {
+            // More of them than there are worker threads, each asking for a JOIN of 500000 rows
+            for(int c=0; c<Runtime.getRuntime().availableProcessors() + 2; c++) {
+                Socket socket = connectTo(port[0]);
+                stalled.add(socket);
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                sendLine(out, "USE " + randomName + "; JOIN marks AND marks ON mark AND mark;");
+            }
+            Thread.sleep(500);
+            try (Socket socket = connectTo(port[0])) {
+                socket.setSoTimeout(10000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                sendLine(out, "USE " + randomName + ";");
+                assertTrue(readReply(in).contains("[OK]"), "USE over a socket failed");
+                sendLine(out, "INSERT INTO marks VALUES ('late', 1);");
+                assertTrue(readReply(in).contains("[OK]"), "A table could not be changed while clients were not reading a JOIN of it");
+                sendLine(out, "SELECT mark FROM marks WHERE name == 'late';");
+                assertTrue(readReply(in).endsWith("1"), "A query got no reply while other clients were not reading theirs");
+            }
+        } finally {
+            for(Socket socket : stalled) socket.close();
+            listener.interrupt();
+            listener.join();
+        }
+    }
+
+    // Two clients of the non-blocking server each get their own replies, with their own session,
+    // however their commands are interleaved
+    @Test
+    public void testNonBlockingServerKeepsClientsApart() throws Exception {
+        String firstName = generateRandomName();
+        String secondName = generateRandomName();
+        int[] port = new int[1];
+        Thread listener = startNonBlockingServer(port);
+        try (Socket first = connectTo(port[0]); Socket second = connectTo(port[0])) {
+            BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.UTF_8));
+            Writer firstOut = new OutputStreamWriter(first.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8));
+            Writer secondOut = new OutputStreamWriter(second.getOutputStream(), StandardCharsets.UTF_8);
+            sendLine(firstOut, "CREATE DATABASE " + firstName + ";");
+            sendLine(secondOut, "CREATE DATABASE " + secondName + ";");
+            sendLine(firstOut, "USE " + firstName + ";");
+            sendLine(secondOut, "USE " + secondName + ";");
+            sendLine(firstOut, "CREATE TABLE marks (name);");
+            sendLine(secondOut, "CREATE TABLE marks (name);");
+            sendLine(secondOut, "INSERT INTO marks VALUES ('Sion');");
+            sendLine(firstOut, "INSERT INTO marks VALUES ('Simon');");
+            sendLine(firstOut, "SELECT name FROM marks;");
+            sendLine(secondOut, "SELECT name FROM marks;");
+            for(int i=0; i<4; i++) {
+                assertTrue(readReply(firstIn).contains("[OK]"), "A valid command from the first client failed");
+                assertTrue(readReply(secondIn).contains("[OK]"), "A valid command from the second client failed");
+            }
+            String firstRows = readReply(firstIn);
+            String secondRows = readReply(secondIn);
+            assertTrue(firstRows.contains("Simon") && !firstRows.contains("Sion"), "The first client got the wrong reply");
+            assertTrue(secondRows.contains("Sion") && !secondRows.contains("Simon"), "The second client got the wrong reply");
+        } finally {
+            listener.interrupt();
+            listener.join();
+        }
+    }
+
+    // A command line longer than the non-blocking server accepts gets an error after the replies to
+    // the commands before it, and the connection is closed instead of buffering it without end
+    @Test
+    public void testOverlongCommandLineClosesConnection() throws Exception {
+        int[] port = new int[1];
+        Thread listener = startNonBlockingServer(port);
+        try (Socket socket = connectTo(port[0])) {
+            socket.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            sendLine(out, "USE " + generateRandomName() + ";");
+            char[] line = new char[SelectorServer.MAX_LINE_BYTES + 1];
+            Arrays.fill(line, 'x');
+            out.write(line);
+            out.flush();
+            assertTrue(readReply(in).contains("[ERROR]"), "The command before an overlong line got the wrong reply");
+            assertTrue(readReply(in).contains("[ERROR] Command is longer"), "An overlong command line didn't get its error");
+            assertTrue(in.readLine() == null, "The connection stayed open after an overlong command line");
+        } finally {
+            listener.interrupt();
+            listener.join();
+        }
+    }
+
+    // A line holding several commands gets one reply per command, in the order they were sent
+    @Test
+    public void testSeveralCommandsOnOneLine() throws Exception {
+        String randomName = generateRandomName();
+        assertTrue(DBServer.splitStatements("INSERT INTO marks VALUES ('a;b'); SELECT * FROM marks;").size() == 2, "A semicolon in a quoted value split a command");
+        int[] port = new int[1];
+        Thread listener = startNonBlockingServer(port);
+        try (Socket socket = connectTo(port[0])) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            sendLine(out, "CREATE DATABASE " + randomName + "; USE " + randomName + "; CREATE TABLE marks (name);"
+                    + " INSERT INTO marks VALUES ('a;b'); SELECT name FROM marks; SELECT mark FROM marks;");
+            for(int i=0; i<4; i++) {
+                String response = readReply(in);
+                assertTrue(response.contains("[OK]") && !response.contains("a;b"), "Reply " + (i + 1) + " to a line of commands was wrong or out of order");
+            }
+            assertTrue(readReply(in).contains("a;b"), "The SELECT on a line of commands got the wrong reply");
+            assertTrue(readReply(in).contains("[ERROR]"), "The bad SELECT on a line of commands didn't get its error");
+        } finally {
+            listener.interrupt();
+            listener.join();
+        }
+    }
+
+    // Frames a change log record the way ChangeLog.append does, with the given checksum
+    private static byte[] frameRecord(ChangeLog.Record record, long checksum) {
+        byte[] payload = record.bytes.toByteArray();
+        return ByteBuffer.allocate(8 + payload.length).putInt(payload.length).putInt((int) checksum).put(payload).array();
+    }
+
+    private static long checksumOf(ChangeLog.Record record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.bytes.toByteArray());
+        return crc.getValue();
+    }
+
+    // Changes only in the change log are replayed on restart, and a corrupt or half written record
+    // at the end of the log is left out
+    @Test
+    public void testChangeLogReplay() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65), ('Sion', 55), ('Rob', 35);");
+        sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Sion';");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Rob';");
+        Path log = Path.of("databases", randomName, ChangeLog.FILE_NAME);
+        assertTrue(Files.size(log) > 0, "The changes were not in the change log");
+        // A complete record with the wrong checksum
+        ChangeLog.Record ghost = ChangeLog.insertRows("marks", 4, List.of(List.of("Ghost", "1")));
+        Files.write(log, frameRecord(ghost, checksumOf(ghost) ^ 1), StandardOpenOption.APPEND);
+        server.close(false);
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("1\tSimon\t65") && response.contains("2\tSion\t70"), "Logged changes were lost on restart");
+        assertFalse(response.contains("Rob") || response.contains("Ghost"), "A deleted row or a corrupt record came back on restart");
+
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);");
+        // A record cut short, as if the server died while writing it
+        byte[] torn = frameRecord(ghost, checksumOf(ghost));
+        Files.write(log, Arrays.copyOf(torn, torn.length / 2), StandardOpenOption.APPEND);
+        server.close(false);
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("4\tChris\t20") && !response.contains("Ghost"), "The change before a torn record was lost, or the torn record was applied");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Bob', 10);").contains("[OK]"), "The table could not be changed after replay");
+        assertTrue(sendCommandToServer("SELECT id FROM marks WHERE name == 'Bob';").endsWith("5"), "A row added after replay got the wrong id");
+    }
+
+    // A crash after a checkpoint wrote the table files but before it cut back the log replays records
+    // the files already hold, which must not add their rows or columns a second time
+    @Test
+    public void testReplayAfterCheckpointKeepsRowsOnce() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("CHECKPOINT;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55), ('Rob', 35);");
+        sendCommandToServer("ALTER TABLE marks ADD age;");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Rob';");
+        Path log = Path.of("databases", randomName, ChangeLog.FILE_NAME);
+        byte[] logged = Files.readAllBytes(log);
+        assertTrue(sendCommandToServer("CHECKPOINT;").contains("[OK]"), "A valid CHECKPOINT was made, however an [OK] tag was not returned");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, 30);");
+        server.close(false);
+        // Put back the records the checkpoint cut off, ahead of the one logged after it
+        byte[] after = Files.readAllBytes(log);
+        Files.write(log, logged);
+        Files.write(log, after, StandardOpenOption.APPEND);
+
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        String[] lines = response.split("\n");
+        assertTrue(lines[1].trim().split("\t").length == 4, "A column was added again on replay");
+        assertTrue(lines.length == 5, "Rows were replayed a second time after a checkpoint");
+        assertTrue(response.contains("4\tChris\t20\t30") && !response.contains("Rob"), "Changes around a checkpoint were lost on replay");
+    }
+
+    // Whichever durability mode the server runs in, statements it has acknowledged are there after
+    // a restart, also when several sessions write at once
+    @Test
+    public void testEveryDurabilityModeKeepsCommittedRows() throws Exception {
+        String previous = System.getProperty("db.durability");
+        try {
+            for(Durability mode : Durability.values()) {
+                System.setProperty("db.durability", mode.name().toLowerCase());
+                server.close();
+                server = new DBServer();
+                String randomName = generateRandomName();
+                sendCommandToServer("CREATE DATABASE " + randomName + ";");
+                sendCommandToServer("USE " + randomName + ";");
+                sendCommandToServer("CREATE TABLE marks (name, mark);");
+                List<Thread> writers = new ArrayList<>();
+                for(int w=0; w<3; w++) {
+                    int writer = w;
+                    writers.add(new Thread(() -> {
+                        Session session = new Session();
+                        server.handleCommand(session, "USE " + randomName + ";");
+                        for(int i=0; i<20; i++) {
+                            server.handleCommand(session, "INSERT INTO marks VALUES ('writer" + writer + "', " + i + ");");
+                        }
+                    }));
+                }
+                for(Thread writer : writers) writer.start();
+                for(Thread writer : writers) writer.join();
+                // Run on its own, as a transaction keeps other sessions from changing the table
+                sendCommandToServer("BEGIN;");
+                sendCommandToServer("UPDATE marks SET mark = 100 WHERE mark == 0;");
+                sendCommandToServer("COMMIT;");
+                server.close(false);
+                server = new DBServer();
+                sendCommandToServer("USE " + randomName + ";");
+                String response = sendCommandToServer("SELECT name FROM marks;");
+                assertTrue(response.split("\n").length == 62, "Rows acknowledged in " + mode + " mode were lost on restart");
+                response = sendCommandToServer("SELECT name FROM marks WHERE mark == 100;");
+                assertTrue(response.split("\n").length == 5, "A transaction committed in " + mode + " mode was lost on restart");
+            }
+        } finally {
+            if(previous == null) {
+                System.clearProperty("db.durability");
+            } else {
+                System.setProperty("db.durability", previous);
+            }
+        }
+    }
+
+    // Adds value to both the column and the list of what it should hold
+    private static void addToColumn(Column column, List<String> expected, String value) {
+        column.add(value);
+        expected.add(value);
+    }
+
+    private static boolean columnHolds(Column column, List<String> expected) {
+        for(int slot=0; slot<expected.size(); slot++) {
+            if(!expected.get(slot).equals(column.get(slot))) return false;
+        }
+        return true;
+    }
+
+    // A column switches encoding as values it can't hold arrive, and every value still reads back
+    // exactly as it was written, also across the boundary between two segments
+    @Test
+    public void testColumnEncodingsReadBackExactly() {
+        Column column = new Column();
+        List<String> expected = new ArrayList<>();
+        for(String value : List.of("1", "2", "-5", "123456789", "-123456789")) addToColumn(column, expected, value);
+        assertTrue(column.encoding().equals("numeric") && columnHolds(column, expected), "Integers didn't read back from a numeric column");
+        for(String value : List.of("1234567890", "72.5", "-0.25")) addToColumn(column, expected, value);
+        assertTrue(column.encoding().equals("floating") && columnHolds(column, expected), "Numbers didn't read back once the column held floats");
+        addToColumn(column, expected, "72.50");
+        addToColumn(column, expected, "Simon");
+        assertTrue(column.encoding().equals("dictionary") && columnHolds(column, expected), "Values didn't read back once the column held text");
+
+        // Many repeats of a few values keep a dictionary, until distinct values overflow it
+        Column text = new Column();
+        List<String> texts = new ArrayList<>();
+        for(int i=0; i<1000; i++) addToColumn(text, texts, "flag" + (i % 10));
+        assertTrue(text.encoding().equals("dictionary") && columnHolds(text, texts), "Repeated values didn't read back from a dictionary");
+        for(int i=0; i<5000; i++) addToColumn(text, texts, "name" + i);
+        assertTrue(text.encoding().equals("plain") && columnHolds(text, texts), "Values didn't read back once the dictionary overflowed");
+
+        // The second segment starts out numeric while the first one holds text
+        Column big = new Column();
+        List<String> bigValues = new ArrayList<>();
+        for(int i=0; i<Column.SEGMENT_ROWS; i++) addToColumn(big, bigValues, i % 3 == 0 ? "row" + i : String.valueOf(i));
+        for(int i=0; i<100; i++) addToColumn(big, bigValues, String.valueOf(-i));
+        Column before = big.snapshot();
+        List<String> beforeValues = new ArrayList<>(bigValues);
+        big.set(Column.SEGMENT_ROWS + 1, "text");
+        bigValues.set(Column.SEGMENT_ROWS + 1, "text");
+        assertTrue(columnHolds(big, bigValues), "Values didn't read back across a segment boundary");
+        assertTrue(columnHolds(before, beforeValues), "A snapshot saw a change made after it was taken");
+        big.remove(new int[] {Column.SEGMENT_ROWS - 2, Column.SEGMENT_ROWS, Column.SEGMENT_ROWS + 50});
+        bigValues.remove(Column.SEGMENT_ROWS + 50);
+        bigValues.remove(Column.SEGMENT_ROWS);
+        bigValues.remove(Column.SEGMENT_ROWS - 2);
+        assertTrue(columnHolds(big, bigValues), "Values didn't read back after rows on both sides of a segment boundary were removed");
+    }
+
+    // Filtering, sorting and formatting a table in parallel gives exactly the replies a scan on
+    // the calling thread gives, rows in the same order
+    @Test
+    public void testParallelScanMatchesSerialScan() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE big (name, mark, score);");
+        for(int batch=0; batch<40; batch++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO big VALUES ");
+            for(int i=0; i<1000; i++) {
+                int row = batch * 1000 + i;
+                insert.append(i == 0 ? "" : ", ").append("('name").append(row % 37).append("', ")
+                        .append((row * 7919) % 1000).append(", ").append(row % 13).append(".5)");
+            }
+            sendCommandToServer(insert.append(";").toString());
+        }
+        List<String> queries = List.of("SELECT * FROM big;", "SELECT name, score FROM big WHERE mark > 500;",
+                "SELECT * FROM big WHERE name == 'name7' ORDER BY mark DESC;", "SELECT id, name FROM big ORDER BY name;",
+                "SELECT * FROM big WHERE mark < 100 OR name == 'name3' ORDER BY score;");
+        int previous = ParallelScan.setThreshold(1);
+        List<String> parallel = new ArrayList<>();
+        try {
+            for(String query : queries) parallel.add(server.handleCommand(query));
+        } finally {
+            ParallelScan.setThreshold(Integer.MAX_VALUE);
+        }
+        try {
+            // A new server, so none of the replies come from the result cache
+            server.close();
+            server = new DBServer();
+            server.handleCommand("USE " + randomName + ";");
+            for(int i=0; i<queries.size(); i++) {
+                String serial = server.handleCommand(queries.get(i));
+                assertTrue(serial.contains("[OK]") && serial.equals(parallel.get(i)), "A parallel scan gave a different reply to " + queries.get(i));
+            }
+        } finally {
+            ParallelScan.setThreshold(previous);
+        }
+    }
+
+    // Changes made while a checkpoint writes the table files are kept in the log it cuts back,
+    // so none of them are lost across a restart
+    @Test
+    public void testCheckpointWhileWriting() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE TABLE other (name);");
+        List<Thread> writers = new ArrayList<>();
+        for(String tableName : List.of("marks", "other")) {
+            writers.add(new Thread(() -> {
+                Session session = new Session();
+                server.handleCommand(session, "USE " + randomName + ";");
+                for(int i=0; i<300; i++) {
+                    server.handleCommand(session, "INSERT INTO " + tableName + " VALUES ('" + tableName + i + "'" + (tableName.equals("marks") ? ", " + i : "") + ");");
+                }
+            }));
+        }
+        for(Thread writer : writers) writer.start();
+        while(writers.get(0).isAlive() || writers.get(1).isAlive()) {
+            assertTrue(sendCommandToServer("CHECKPOINT;").contains("[OK]"), "A checkpoint failed while tables were being changed");
+        }
+        for(Thread writer : writers) writer.join();
+        server.close(false);
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        assertTrue(sendCommandToServer("SELECT id FROM marks;").split("\n").length == 302, "Rows added during a checkpoint were lost");
+        assertTrue(sendCommandToServer("SELECT id FROM other;").split("\n").length == 302, "Rows added during a checkpoint were lost");
+    }
+
+    // The rows of a JOIN of two tables whose rows hold their key in every value, checked to match up
+    private static boolean joinRowsMatch(String response, String left, String right) {
+        List<String> rows = joinedRows(response);
+        for(String row : rows) {
+            String[] cells = row.split("\t");
+            if(cells.length != 4 || !cells[0].equals(cells[2]) || !cells[1].equals(left + cells[0]) || !cells[3].equals(right + cells[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Statements on two tables lock them per table rather than all at once; JOINs in either order
+    // run alongside writers to both tables without deadlocking or pairing the wrong rows
+    @Test
+    public void testJoinAlongsideWriters() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE lefts (k, val);");
+        sendCommandToServer("CREATE TABLE rights (k, label);");
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            List<Thread> threads = new ArrayList<>();
+            List<String> failures = Collections.synchronizedList(new ArrayList<>());
+            threads.add(new Thread(() -> {
+                Session session = new Session();
+                server.handleCommand(session, "USE " + randomName + ";");
+                for(int k=0; k<200; k++) {
+                    server.handleCommand(session, "INSERT INTO lefts VALUES (" + k + ", 'a" + k + "');");
+                    if(k % 4 == 0) {
+                        server.handleCommand(session, "DELETE FROM lefts WHERE k < " + (k / 4) + ";");
+                    }
+                }
+            }));
+            threads.add(new Thread(() -> {
+                Session session = new Session();
+                server.handleCommand(session, "USE " + randomName + ";");
+                for(int k=199; k>=0; k--) {
+                    server.handleCommand(session, "INSERT INTO rights VALUES (" + k + ", 'b" + k + "');");
+                }
+            }));
+            for(boolean leftFirst : new boolean[] {true, false}) {
+                threads.add(new Thread(() -> {
+                    Session session = new Session();
+                    server.handleCommand(session, "USE " + randomName + ";");
+                    for(int i=0; i<100; i++) {
+                        String response = leftFirst ? server.handleCommand(session, "JOIN lefts AND rights ON k AND k;")
+                                : server.handleCommand(session, "JOIN rights AND lefts ON k AND k;");
+                        boolean matched = leftFirst ? joinRowsMatch(response, "a", "b") : joinRowsMatch(response, "b", "a");
+                        if(!response.startsWith("[OK]") || !matched) {
+                            failures.add(response);
+                        }
+                    }
+                }));
+            }
+            for(Thread thread : threads) thread.start();
+            for(Thread thread : threads) thread.join();
+            assertTrue(failures.isEmpty(), "A JOIN running alongside writers failed or paired the wrong rows");
+        }, "JOINs and writers on the same tables deadlocked");
+        String response = sendCommandToServer("JOIN lefts AND rights ON k AND k;");
+        assertTrue(joinRowsMatch(response, "a", "b") && joinedRows(response).size() == 151, "The JOIN after the writers were done gave the wrong rows");
+    }
+
+    // A LOAD DATA whose end marker never made it into the change log is undone on replay, before
+    // later changes to the table are applied
+    @Test
+    public void testUnfinishedLoadIsNotReplayed() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65), ('Sion', 55);");
+        Path file = Files.createTempFile("marks", ".csv");
+        StringBuilder rows = new StringBuilder();
+        for(int i=0; i<25000; i++) {
+            rows.append("loaded").append(i).append(',').append(i).append('\n');
+        }
+        Files.writeString(file, rows);
+        assertTrue(server.handleCommand("LOAD DATA '" + file + "' INTO marks;").contains("[OK]"), "A valid LOAD DATA was made, however an [OK] tag was not returned");
+        Files.delete(file);
+        server.close(false);
+
+        // Cut the last record, the load's end marker, off the log as if the server had died before writing it
+        Path log = Path.of("databases", randomName, ChangeLog.FILE_NAME);
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(log));
+        int last = 0;
+        for(int position=0; position<bytes.limit(); position+=8+bytes.getInt(position)) {
+            last = position;
+        }
+        Files.write(log, Arrays.copyOf(bytes.array(), last));
+        ChangeLog.Record late = ChangeLog.insertRows("marks", 3, List.of(List.of("Late", "1")));
+        Files.write(log, frameRecord(late, checksumOf(late)), StandardOpenOption.APPEND);
+
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertFalse(response.contains("loaded"), "Rows of a load without its end marker were replayed");
+        assertTrue(response.contains("1\tSimon") && response.contains("2\tSion") && response.contains("3\tLate"), "Changes around an unfinished load were lost on replay");
+    }
+
 }